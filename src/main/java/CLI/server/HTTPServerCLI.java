@@ -7,6 +7,7 @@ public class HTTPServerCLI extends ServerCLI {
 
     {
         commands.put("exit", this::exit);
+        commands.put("cache", this::cache);
     }
 
     public static void main(String[] args) {
@@ -21,6 +22,16 @@ public class HTTPServerCLI extends ServerCLI {
         System.exit(0);
     }
 
+    void cache(org.apache.commons.cli.CommandLine args) {
+        if (server == null) {
+            System.out.println("Server is not running");
+            return;
+        }
+        System.out.println(server.getContentCache());
+        System.out.println(server.getMappedFileCache());
+        System.out.println(server.getFileMetadataCache());
+    }
+
     @Override
     protected void start() {
         super.start();
@@ -3,6 +3,7 @@ package HTTP.client;
 import HTTP.exception.HTTPMethodNotAllowedException;
 import HTTP.exception.HTTPRequestFormatException;
 import HTTP.exception.HTTPResponseFormatException;
+import HTTP.message.HTTPMessageFramer;
 import HTTP.message.HTTPRequest;
 import HTTP.message.HTTPResponse;
 import HTTP.rule.HTTPVersion;
@@ -17,6 +18,12 @@ public final class HTTPClient extends TCPClient {
     private static final int MAX_REDIRECTS = 5;
     private static final String HOST_NAME = "Simple HTTP Client";
     private String path;
+    // 当前连接上已完成的请求数
+    private int requestCount;
+
+    {
+        framer = new HTTPMessageFramer();
+    }
 
     public HTTPClient(String host, int port, String path) {
         super(host, port);
@@ -41,6 +48,34 @@ public final class HTTPClient extends TCPClient {
         }
     }
 
+    /**
+     * 在持久连接上发送请求并读取响应
+     * 复用的连接可能已被服务器因空闲超时关闭，此时重新建立连接并重试一次
+     */
+    private HTTPResponse exchange(byte[] request) throws IOException, HTTPResponseFormatException {
+        boolean reused = isReady() && requestCount > 0;
+        byte[] message;
+        try {
+            sendMessage(request);
+            message = receiveMessage();
+        } catch (IOException e) {
+            if (!reused) throw e;
+            stop();
+            start();
+            requestCount = 0;
+            sendMessage(request);
+            message = receiveMessage();
+        }
+        requestCount++;
+
+        HTTPResponse response = new HTTPResponse(HTTPEncodingUtil.decodeBinary(message));
+        if ("close".equalsIgnoreCase(response.getHeaders().get("Connection"))) {
+            stop();
+            requestCount = 0;
+        }
+        return response;
+    }
+
     public void connect(Consumer<byte[]> handler) {
         enter("/", handler);
     }
@@ -57,8 +92,8 @@ public final class HTTPClient extends TCPClient {
             request.getRequestLine().setVersion(HTTPVersion.getDefaultVersion());
             request.getHeaders().add("Host", HOST_NAME);
             request.getHeaders().add("Content-Length", "0");
-            sendMessage(request.getBytes());
-            HTTPResponse response = new HTTPResponse(HTTPEncodingUtil.decodeBinary(receiveMessage()));
+            request.getHeaders().add("Connection", "keep-alive");
+            HTTPResponse response = exchange(request.getBytes());
             response = checkRedirect(response);
             handler.accept(response.getBody().getBytes());
         } catch (HTTPMethodNotAllowedException | HTTPRequestFormatException e) {
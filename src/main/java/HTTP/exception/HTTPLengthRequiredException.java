@@ -0,0 +1,12 @@
+package HTTP.exception;
+
+public class HTTPLengthRequiredException extends HTTPRequestFormatException {
+    private static final long serialVersionUID = -2290347735913358261L;
+
+    public HTTPLengthRequiredException(String message) {
+        super(message);
+    }
+    public HTTPLengthRequiredException() {
+        super();
+    }
+}
@@ -0,0 +1,12 @@
+package HTTP.exception;
+
+public class HTTPPayloadTooLargeException extends HTTPRequestFormatException {
+    private static final long serialVersionUID = 4823017265519083542L;
+
+    public HTTPPayloadTooLargeException(String message) {
+        super(message);
+    }
+    public HTTPPayloadTooLargeException() {
+        super();
+    }
+}
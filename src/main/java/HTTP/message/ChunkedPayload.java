@@ -0,0 +1,71 @@
+package HTTP.message;
+
+import HTTP.utils.HTTPEncodingUtil;
+import TCP.TCPPayload;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 按Transfer-Encoding: chunked编码发送的消息体
+ * 每次只在内存中保留一块数据，写完后再从来源取下一块
+ */
+class ChunkedPayload implements TCPPayload {
+    private static final byte[] LAST_CHUNK = HTTPEncodingUtil.encodeText("0\r\n\r\n");
+    private static final byte[] PREVIEW = HTTPEncodingUtil.encodeText("[chunked body]");
+
+    private final HTTPChunkSource source;
+    private ByteBuffer current;
+    private boolean finished;
+    private boolean released;
+
+    ChunkedPayload(HTTPChunkSource source) {
+        this.source = source;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        boolean nonBlocking = TCPPayload.isNonBlocking(channel);
+        while (true) {
+            if (current == null || !current.hasRemaining()) {
+                if (finished) return true;
+                current = nextEncodedChunk();
+            }
+            if (channel.write(current) == 0 && nonBlocking && current.hasRemaining()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 块大小的十六进制表示、CRLF、数据、CRLF；来源结束时返回最后一个长度为0的块
+     */
+    private ByteBuffer nextEncodedChunk() throws IOException {
+        byte[] chunk;
+        do {
+            chunk = source.nextChunk();
+        } while (chunk != null && chunk.length == 0);
+        if (chunk == null) {
+            finished = true;
+            return ByteBuffer.wrap(LAST_CHUNK);
+        }
+        byte[] size = HTTPEncodingUtil.encodeText(Integer.toHexString(chunk.length));
+        ByteBuffer buffer = ByteBuffer.allocate(size.length + chunk.length + 4);
+        buffer.put(size).put((byte) '\r').put((byte) '\n')
+                .put(chunk).put((byte) '\r').put((byte) '\n');
+        return buffer.flip();
+    }
+
+    @Override
+    public byte[] preview() {
+        return PREVIEW;
+    }
+
+    @Override
+    public void release() {
+        if (released) return;
+        released = true;
+        source.close();
+    }
+}
@@ -0,0 +1,19 @@
+package HTTP.message;
+
+import java.io.IOException;
+
+/**
+ * 分块传输的消息体来源，发送时逐块取出，不需要预先知道总长度
+ */
+@FunctionalInterface
+public interface HTTPChunkSource {
+    /**
+     * @return 下一块数据，没有更多数据时返回null，空数组会被跳过
+     */
+    byte[] nextChunk() throws IOException;
+
+    /**
+     * 发送完成或连接关闭时调用，释放占用的资源
+     */
+    default void close() {}
+}
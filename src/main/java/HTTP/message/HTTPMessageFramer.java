@@ -0,0 +1,249 @@
+package HTTP.message;
+
+import HTTP.utils.HTTPEncodingUtil;
+import TCP.MessageFramer;
+
+/**
+ * HTTP消息分帧：先读到头部结束的空行，再按Content-Length或分块传输编码读取消息体
+ * 请求和响应共用，头部格式错误时不在这里处理，交给解析器返回错误
+ * 超过streamThreshold的消息体不缓冲在内存中，以流的形式交给handler；超过maxBodySize时只切分出头部，由解析器拒绝
+ * 分块传输的消息体在扫描时累计长度，超过maxBodySize时同样只切分出头部
+ * 不接受分块请求体时，带有Transfer-Encoding的请求只切分出头部，由服务器拒绝并关闭连接，消息体不会被缓冲
+ */
+public class HTTPMessageFramer implements MessageFramer {
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(HTTPEncodingUtil.BINARY_CHARSET);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding:".getBytes(HTTPEncodingUtil.BINARY_CHARSET);
+    private static final byte[] CHUNKED = "chunked".getBytes(HTTPEncodingUtil.BINARY_CHARSET);
+    // chunkedLength的返回值，表示消息体超过上限
+    private static final int TOO_LARGE = -2;
+
+    private final long streamThreshold;
+    private volatile long maxBodySize;
+    private final boolean rejectTransferEncoding;
+
+    /**
+     * 不以流的形式传输消息体，消息体长度不限
+     */
+    public HTTPMessageFramer() {
+        this(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    public HTTPMessageFramer(long streamThreshold, long maxBodySize) {
+        this(streamThreshold, maxBodySize, false);
+    }
+
+    /**
+     * @param rejectTransferEncoding 为true时不读取Transfer-Encoding的消息体，用于不支持分块请求体的服务器
+     */
+    public HTTPMessageFramer(long streamThreshold, long maxBodySize, boolean rejectTransferEncoding) {
+        this.streamThreshold = streamThreshold;
+        this.maxBodySize = maxBodySize;
+        this.rejectTransferEncoding = rejectTransferEncoding;
+    }
+
+    public void setMaxBodySize(long maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    @Override
+    public int frameLength(byte[] buffer, int offset, int length) {
+        return frameLength(buffer, offset, length, 0);
+    }
+
+    /**
+     * 头部不完整时返回-1，下次从scanned附近继续查找头部结尾；消息体不完整时返回需要的总长度的相反数
+     */
+    @Override
+    public int frameLength(byte[] buffer, int offset, int length, int scanned) {
+        int headerLength = headerLength(buffer, offset, length, scanned);
+        if (headerLength == -1) {
+            // 头部过长时不再等待，把已收到的数据交给解析器拒绝
+            return length >= MAX_HEADER_SIZE ? length : -1;
+        }
+        if (rejectTransferEncoding && findField(buffer, offset, headerLength, TRANSFER_ENCODING) != -1) {
+            return headerLength;
+        }
+        if (isChunked(buffer, offset, headerLength)) {
+            int bodyLength = chunkedLength(buffer, offset + headerLength, length - headerLength, maxBodySize);
+            if (bodyLength == TOO_LARGE) return headerLength;
+            // 分块的长度事先未知，收到更多数据后重新检查
+            return bodyLength == -1 ? -(length + 1) : headerLength + bodyLength;
+        }
+        long contentLength = contentLength(buffer, offset, headerLength);
+        if (contentLength <= 0 || contentLength > Math.min(streamThreshold, maxBodySize)) {
+            return headerLength;
+        }
+        long frameLength = headerLength + contentLength;
+        if (frameLength <= length) return (int) frameLength;
+        return -(int) Math.min(frameLength, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public long streamLength(byte[] frame) {
+        // 消息体较小时frame中已经包括消息体
+        if (headerLength(frame, 0, frame.length) != frame.length) return 0;
+        if (rejectTransferEncoding && findField(frame, 0, frame.length, TRANSFER_ENCODING) != -1) return 0;
+        long contentLength = contentLength(frame, 0, frame.length);
+        return contentLength > streamThreshold && contentLength <= maxBodySize ? contentLength : 0;
+    }
+
+    /**
+     * @return 包括结尾空行在内的头部长度，头部还不完整时返回-1
+     */
+    public static int headerLength(byte[] buffer, int offset, int length) {
+        return headerLength(buffer, offset, length, 0);
+    }
+
+    /**
+     * @param scanned 前scanned个字节中已确认没有头部结尾，结尾的空行可能跨过这个位置，从其前3个字节开始查找
+     */
+    private static int headerLength(byte[] buffer, int offset, int length, int scanned) {
+        int end = offset + length;
+        for (int i = offset + Math.max(0, scanned - 3); i + 3 < end; i++) {
+            if (buffer[i] == '\r' && buffer[i + 1] == '\n' && buffer[i + 2] == '\r' && buffer[i + 3] == '\n') {
+                return i + 4 - offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 在头部中查找Content-Length，不存在或格式错误时返回-1
+     */
+    public static long contentLength(byte[] buffer, int offset, int headerLength) {
+        int lineStart = findField(buffer, offset, headerLength, CONTENT_LENGTH);
+        if (lineStart == -1) return -1;
+        return parseLong(buffer, lineStart + CONTENT_LENGTH.length, lineEnd(buffer, lineStart, offset + headerLength));
+    }
+
+    /**
+     * 头部中的Transfer-Encoding是否以chunked结尾
+     */
+    public static boolean isChunked(byte[] buffer, int offset, int headerLength) {
+        int lineStart = findField(buffer, offset, headerLength, TRANSFER_ENCODING);
+        if (lineStart == -1) return false;
+        int to = lineEnd(buffer, lineStart, offset + headerLength);
+        while (to > lineStart && buffer[to - 1] == ' ') to--;
+        int from = to - CHUNKED.length;
+        return from >= lineStart + TRANSFER_ENCODING.length && startsWithIgnoreCase(buffer, from, to, CHUNKED);
+    }
+
+    /**
+     * 计算分块传输编码的消息体长度，包括最后一个长度为0的块和结尾的trailer字段
+     * @return 消息体还不完整时返回-1；块大小格式错误时返回已收到的全部长度，交给解析器拒绝
+     */
+    public static int chunkedLength(byte[] buffer, int offset, int length) {
+        int bodyLength = chunkedLength(buffer, offset, length, Long.MAX_VALUE);
+        return bodyLength == TOO_LARGE ? length : bodyLength;
+    }
+
+    /**
+     * @param maxBodySize 各块数据长度之和的上限，块大小行和trailer字段另外最多允许MAX_HEADER_SIZE字节
+     * @return 超过上限时返回TOO_LARGE，不再等待剩余的数据
+     */
+    private static int chunkedLength(byte[] buffer, int offset, int length, long maxBodySize) {
+        int end = offset + length;
+        int pos = offset;
+        long bodySize = 0;
+        while (true) {
+            int lineEnd = lineEnd(buffer, pos, end);
+            if (lineEnd + 1 >= end) return incomplete(length, maxBodySize);
+            long size = parseHex(buffer, pos, lineEnd);
+            if (size < 0) return length;
+            pos = lineEnd + 2;
+            if (size == 0) break;
+            // 按声明的块大小累计，不等收到块的数据
+            bodySize += size;
+            if (bodySize > maxBodySize) return TOO_LARGE;
+            if (size > end - pos - 2) return incomplete(length, maxBodySize);
+            pos += (int) size + 2;
+        }
+        // trailer字段直到空行结束
+        while (true) {
+            int lineEnd = lineEnd(buffer, pos, end);
+            if (lineEnd + 1 >= end) return incomplete(length, maxBodySize);
+            if (lineEnd == pos) return lineEnd + 2 - offset;
+            pos = lineEnd + 2;
+        }
+    }
+
+    /**
+     * 块数据之外的部分(块大小行、块扩展、trailer字段)没有上限时，一直不结束的消息体会让缓冲区无限增长
+     */
+    private static int incomplete(int length, long maxBodySize) {
+        return length - MAX_HEADER_SIZE > maxBodySize ? TOO_LARGE : -1;
+    }
+
+    /**
+     * @return 字段所在行的起始位置，不存在时返回-1
+     */
+    private static int findField(byte[] buffer, int offset, int headerLength, byte[] name) {
+        int end = offset + headerLength;
+        int lineStart = offset;
+        while (lineStart < end) {
+            int lineEnd = lineEnd(buffer, lineStart, end);
+            if (startsWithIgnoreCase(buffer, lineStart, lineEnd, name)) {
+                return lineStart;
+            }
+            lineStart = lineEnd + 2;
+        }
+        return -1;
+    }
+
+    private static int lineEnd(byte[] buffer, int from, int end) {
+        while (from < end && buffer[from] != '\r') from++;
+        return from;
+    }
+
+    /**
+     * 解析块大小，忽略分号之后的块扩展，格式错误时返回-1
+     */
+    private static long parseHex(byte[] buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == ';') {
+                to = i;
+                break;
+            }
+        }
+        while (from < to && buffer[from] == ' ') from++;
+        while (to > from && buffer[to - 1] == ' ') to--;
+        if (from == to || to - from > 15) return -1;
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit(buffer[i], 16);
+            if (digit == -1) return -1;
+            value = value * 16 + digit;
+        }
+        return value;
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] buffer, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (toLowerCase(buffer[from + i]) != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private static long parseLong(byte[] buffer, int from, int to) {
+        while (from < to && buffer[from] == ' ') from++;
+        while (to > from && buffer[to - 1] == ' ') to--;
+        if (from == to || to - from > 18) return -1;
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            byte b = buffer[i];
+            if (b < '0' || b > '9') return -1;
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
@@ -1,18 +1,29 @@
 package HTTP.message;
 
 import HTTP.exception.HTTPMethodNotAllowedException;
+import HTTP.exception.HTTPLengthRequiredException;
 import HTTP.exception.HTTPRequestFormatException;
 import HTTP.exception.HTTPRequestHeadersFormatException;
 import HTTP.exception.HTTPRequestLineFormatException;
 import HTTP.utils.HTTPEncodingUtil;
+import HTTP.utils.HTTPOutputBuffer;
 import HTTP.rule.HTTPVersion;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.*;
 
 public class HTTPRequest {
     private HTTPRequestLine requestLine;
     private HTTPRequestHeaders headers;
     private HTTPRequestBody body;
+    // 路由匹配到的路径参数和通配段，由服务器在调用处理函数前设置
+    private Map<String, String> pathParameters = Map.of();
+    private String pathWildcard;
 
     public static class HTTPRequestLine {
         private static final HashSet<String> supportedMethods = new HashSet<>();
@@ -31,6 +42,13 @@ public class HTTPRequest {
             modifiable = true;
         }
 
+        HTTPRequestLine(String method, String path, String version) {
+            this.method = method;
+            this.path = path;
+            this.version = version;
+            modifiable = false;
+        }
+
         public HTTPRequestLine(String line) throws HTTPRequestLineFormatException, HTTPMethodNotAllowedException {
             line = HTTPEncodingUtil.binaryToText(line);
             modifiable = true;
@@ -88,10 +106,18 @@ public class HTTPRequest {
         public byte[] getBytes() {
             return HTTPEncodingUtil.encodeText(String.join(" ", method, path, version));
         }
+
+        /**
+         * 写入请求行及结尾的CRLF
+         */
+        public void writeTo(HTTPOutputBuffer buffer) {
+            buffer.writeText(method).write((byte) ' ').writeText(path).write((byte) ' ').writeText(version).writeCRLF();
+        }
     }
 
     public static class HTTPRequestHeaders {
         private static final String KEY_REGEX = "[A-Za-z]+(-[A-Za-z]*)*";
+        private static final byte[] FIELD_SEPARATOR = {':', ' '};
 
         private final HashMap<String, String> fields = new HashMap<>();
         private boolean modifiable;
@@ -100,6 +126,11 @@ public class HTTPRequest {
             modifiable = true;
         }
 
+        HTTPRequestHeaders(HashMap<String, String> fields) {
+            this.fields.putAll(fields);
+            modifiable = false;
+        }
+
         public HTTPRequestHeaders(String headers) throws HTTPRequestHeadersFormatException {
             headers = HTTPEncodingUtil.binaryToText(headers);
             modifiable = true;
@@ -133,6 +164,20 @@ public class HTTPRequest {
             return fields.get(name);
         }
 
+        /**
+         * 忽略字段名大小写查找，字段名大小写不确定时使用
+         */
+        public String getIgnoreCase(String name) {
+            String value = fields.get(name);
+            if (value != null) return value;
+            for (Map.Entry<String, String> entry : fields.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(name)) {
+                    return entry.getValue();
+                }
+            }
+            return null;
+        }
+
         public HashMap<String, String> getFields() {
             return new HashMap<>(fields);
         }
@@ -142,16 +187,26 @@ public class HTTPRequest {
         }
 
         public byte[] getBytes() {
-            StringJoiner joiner = new StringJoiner("\r\n", "", "\r\n");
+            HTTPOutputBuffer buffer = HTTPOutputBuffer.get();
+            writeTo(buffer);
+            return buffer.toByteArray();
+        }
+
+        /**
+         * 写入所有头部字段，每个字段以CRLF结尾，不包括头部结束的空行
+         */
+        public void writeTo(HTTPOutputBuffer buffer) {
             for (Map.Entry<String, String> entry : fields.entrySet()) {
-                joiner.add(entry.getKey() + ": " + entry.getValue());
+                buffer.writeText(entry.getKey()).write(FIELD_SEPARATOR).writeText(entry.getValue()).writeCRLF();
             }
-            return HTTPEncodingUtil.encodeText(joiner.toString());
         }
     }
 
     public static class HTTPRequestBody {
         private byte[] body;
+        // 不为null时消息体直接从连接读取，不预先缓冲在内存中
+        private InputStream stream;
+        private long length;
         private boolean modifiable;
 
         public HTTPRequestBody() {
@@ -171,16 +226,55 @@ public class HTTPRequest {
             modifiable = false;
         }
 
+        /**
+         * 以流的形式读取的消息体，只能读取一次
+         */
+        public HTTPRequestBody(InputStream stream, long length) {
+            this.stream = stream;
+            this.length = length;
+            modifiable = false;
+        }
+
         public void setBody(byte[] body) {
             if (!modifiable) return;
             this.body = body;
         }
 
+        public boolean isStreamed() {
+            return stream != null;
+        }
+
+        public long getLength() {
+            return stream != null ? length : body.length;
+        }
+
+        /**
+         * 以流的形式读取消息体，较大的上传应通过该方法边读边处理，例如直接写入文件
+         */
+        public InputStream getStream() {
+            return stream != null ? stream : new ByteArrayInputStream(body);
+        }
+
+        public ReadableByteChannel getChannel() {
+            return Channels.newChannel(getStream());
+        }
+
         public byte[] getBody() {
-            return body;
+            return getBytes();
         }
 
+        /**
+         * 流形式的消息体会被全部读入内存，之后不能再通过getStream读取
+         */
         public byte[] getBytes() {
+            if (stream != null) {
+                try {
+                    body = stream.readNBytes((int) Math.min(length, Integer.MAX_VALUE));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                stream = null;
+            }
             return body;
         }
     }
@@ -197,41 +291,89 @@ public class HTTPRequest {
         return body;
     }
 
+    /**
+     * 路由模式中":name"参数段匹配到的值
+     * @return 路由中没有该参数时返回null
+     */
+    public String getPathParameter(String name) {
+        return pathParameters.get(name);
+    }
+
+    public Map<String, String> getPathParameters() {
+        return pathParameters;
+    }
+
+    /**
+     * 路由模式末尾"*"通配段匹配到的剩余路径，不含开头的'/'
+     * @return 路由中没有通配段时返回null
+     */
+    public String getPathWildcard() {
+        return pathWildcard;
+    }
+
+    public void setPathParameters(Map<String, String> pathParameters, String pathWildcard) {
+        this.pathParameters = pathParameters;
+        this.pathWildcard = pathWildcard;
+    }
+
     public HTTPRequest() {
         requestLine = new HTTPRequestLine();
         headers = new HTTPRequestHeaders();
         body = new HTTPRequestBody();
     }
 
+    HTTPRequest(HTTPRequestLine requestLine, HTTPRequestHeaders headers, HTTPRequestBody body) {
+        this.requestLine = requestLine;
+        this.headers = headers;
+        this.body = body;
+    }
+
     public HTTPRequest(String message) throws HTTPRequestFormatException, HTTPMethodNotAllowedException {
-        parse(message);
+        this(HTTPEncodingUtil.encodeBinary(message));
     }
 
-    private void parse(String message) throws HTTPRequestFormatException, HTTPMethodNotAllowedException {
-        String[] parts1 = message.split("\r\n", 2);
-        if (parts1.length != 2) {
+    /**
+     * 解析请求行和头部，消息体从bodyStream读取
+     * @param bodyStream 为null时消息体包括在message中
+     * @param maxBodySize 消息体的最大长度，超过时抛出HTTPPayloadTooLargeException
+     */
+    public static HTTPRequest parse(byte[] message, InputStream bodyStream, long maxBodySize)
+            throws HTTPRequestFormatException, HTTPMethodNotAllowedException {
+        HTTPRequestParser parser = new HTTPRequestParser(maxBodySize);
+        parser.setBodyStream(bodyStream);
+        int consumed = parser.feed(message, 0, message.length);
+        if (!parser.isComplete()) {
             throw new HTTPRequestFormatException("Lack necessary parts");
         }
-        requestLine = new HTTPRequestLine(parts1[0]);
-
-        String[] parts2 = parts1[1].split("(?<=\r\n)\r\n");
-        headers = new HTTPRequestHeaders(parts2[0]);
-
-        if (requestLine.getMethod().equals("GET") && parts2.length != 1) {
-            throw new HTTPRequestFormatException("GET method cannot have body");
-        } else if (requestLine.getMethod().equals("POST")) {
-            if (parts2.length != 2) {
-                throw new HTTPRequestFormatException("POST method must have body");
-            }
-            body = new HTTPRequestBody(parts2[1]);
+        if (parser.isTransferEncoded()) {
+            // 不支持分块传输的请求体，消息体没有被读取
+            throw new HTTPLengthRequiredException("Transfer-Encoding is not supported in requests");
         }
+        if (consumed != message.length) {
+            throw new HTTPRequestFormatException("Unexpected bytes after message");
+        }
+        return parser.getRequest();
+    }
+
+    public HTTPRequest(byte[] message) throws HTTPRequestFormatException, HTTPMethodNotAllowedException {
+        HTTPRequest request = parse(message, null, Long.MAX_VALUE);
+        requestLine = request.requestLine;
+        headers = request.headers;
+        body = request.body;
     }
 
+    /**
+     * 请求行和头部在线程复用的缓冲区中序列化，消息体只复制一次到结果数组
+     */
     public byte[] getBytes() {
-        return HTTPEncodingUtil.encodeBinary(
-                String.join("\r\n",
-                        HTTPEncodingUtil.decodeBinary(requestLine.getBytes()),
-                        HTTPEncodingUtil.decodeBinary(headers.getBytes()),
-                        HTTPEncodingUtil.decodeBinary(body.getBytes())));
+        HTTPOutputBuffer buffer = HTTPOutputBuffer.get();
+        requestLine.writeTo(buffer);
+        headers.writeTo(buffer);
+        buffer.writeCRLF();
+        byte[] content = body.getBytes();
+        byte[] bytes = new byte[buffer.size() + content.length];
+        buffer.copyTo(bytes, 0);
+        System.arraycopy(content, 0, bytes, buffer.size(), content.length);
+        return bytes;
     }
 }
@@ -0,0 +1,349 @@
+package HTTP.message;
+
+import HTTP.exception.HTTPMethodNotAllowedException;
+import HTTP.exception.HTTPPayloadTooLargeException;
+import HTTP.exception.HTTPRequestFormatException;
+import HTTP.exception.HTTPRequestHeadersFormatException;
+import HTTP.exception.HTTPRequestLineFormatException;
+import HTTP.rule.HTTPVersion;
+import HTTP.utils.HTTPEncodingUtil;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 增量式HTTP请求解析器，直接在字节上按状态机解析，不经过整条消息的字符串和正则
+ * 数据可以分多次喂入，一行被拆开时会暂存在内部的行缓冲区中
+ */
+public class HTTPRequestParser {
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+    private static final String[] METHODS = {"GET", "POST"};
+
+    private enum State {
+        REQUEST_LINE, HEADERS, BODY, DONE
+    }
+
+    private State state = State.REQUEST_LINE;
+    private byte[] lineBuffer = new byte[256];
+    private int lineLength;
+
+    private HTTPRequest.HTTPRequestLine requestLine;
+    private HashMap<String, String> fields;
+    private byte[] body;
+    private int bodyPosition;
+    // 消息体的最大长度，超过时拒绝请求
+    private final long maxBodySize;
+    // 不为null时消息体不在喂入的数据中，而是从该流读取
+    private InputStream bodyStream;
+    private long contentLength;
+    // 请求带有Transfer-Encoding，不支持分块传输的请求体，头部之后的数据不被消耗
+    private boolean transferEncoded;
+
+    public HTTPRequestParser() {
+        this(Long.MAX_VALUE);
+    }
+
+    public HTTPRequestParser(long maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * 消息体以流的形式单独传输，喂入的数据只包括请求行和头部，需在喂入数据前调用
+     */
+    public void setBodyStream(InputStream bodyStream) {
+        this.bodyStream = bodyStream;
+    }
+
+    /**
+     * 喂入数据
+     * @return 本次消耗的字节数，请求解析完成后剩余的字节不会被消耗
+     */
+    public int feed(byte[] buffer, int offset, int length)
+            throws HTTPRequestFormatException, HTTPMethodNotAllowedException {
+        int position = offset;
+        int end = offset + length;
+        while (position < end && state != State.DONE) {
+            if (state == State.BODY) {
+                int n = Math.min(end - position, body.length - bodyPosition);
+                System.arraycopy(buffer, position, body, bodyPosition, n);
+                bodyPosition += n;
+                position += n;
+                if (bodyPosition == body.length) {
+                    state = State.DONE;
+                }
+                continue;
+            }
+
+            int lineEnd = indexOf(buffer, position, end, (byte) '\n');
+            if (lineEnd == -1) {
+                appendLine(buffer, position, end - position);
+                position = end;
+                break;
+            }
+
+            if (lineLength == 0) {
+                if (lineEnd - position > MAX_LINE_LENGTH) {
+                    throw new HTTPRequestFormatException("Line is too long");
+                }
+                // 整行都在本次数据中，直接在原数组上解析
+                onLine(buffer, position, trimCR(buffer, position, lineEnd));
+            } else {
+                appendLine(buffer, position, lineEnd - position);
+                onLine(lineBuffer, 0, trimCR(lineBuffer, 0, lineLength));
+                lineLength = 0;
+            }
+            position = lineEnd + 1;
+        }
+        return position - offset;
+    }
+
+    public boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    /**
+     * 请求是否带有Transfer-Encoding，此时头部之后的数据不会被消耗
+     */
+    public boolean isTransferEncoded() {
+        return transferEncoded;
+    }
+
+    /**
+     * 获取解析完成的请求，未完成时返回null
+     */
+    public HTTPRequest getRequest() {
+        if (state != State.DONE) return null;
+        HTTPRequest.HTTPRequestBody requestBody;
+        if (bodyStream != null && contentLength > 0) {
+            requestBody = new HTTPRequest.HTTPRequestBody(bodyStream, contentLength);
+        } else if (body != null) {
+            requestBody = new HTTPRequest.HTTPRequestBody(body);
+        } else {
+            requestBody = new HTTPRequest.HTTPRequestBody();
+        }
+        return new HTTPRequest(requestLine, new HTTPRequest.HTTPRequestHeaders(fields), requestBody);
+    }
+
+    /**
+     * 重置状态，以便在同一连接上解析下一个请求
+     */
+    public void reset() {
+        state = State.REQUEST_LINE;
+        lineLength = 0;
+        requestLine = null;
+        fields = null;
+        body = null;
+        bodyPosition = 0;
+        bodyStream = null;
+        contentLength = 0;
+        transferEncoded = false;
+    }
+
+    private void onLine(byte[] line, int from, int to)
+            throws HTTPRequestFormatException, HTTPMethodNotAllowedException {
+        if (state == State.REQUEST_LINE) {
+            parseRequestLine(line, from, to);
+            fields = new HashMap<>();
+            state = State.HEADERS;
+        } else if (from == to) {
+            onHeadersEnd();
+        } else {
+            parseField(line, from, to);
+        }
+    }
+
+    private void parseRequestLine(byte[] line, int from, int to)
+            throws HTTPRequestLineFormatException, HTTPMethodNotAllowedException {
+        int firstSpace = indexOf(line, from, to, (byte) ' ');
+        int secondSpace = firstSpace == -1 ? -1 : indexOf(line, firstSpace + 1, to, (byte) ' ');
+        if (secondSpace == -1 || indexOf(line, secondSpace + 1, to, (byte) ' ') != -1) {
+            throw new HTTPRequestLineFormatException("Lack necessary parts");
+        }
+
+        String method = null;
+        for (String candidate : METHODS) {
+            if (equalsAscii(line, from, firstSpace, candidate)) {
+                method = candidate;
+                break;
+            }
+        }
+        if (method == null) {
+            throw new HTTPMethodNotAllowedException("Method is not supported: " + text(line, from, firstSpace));
+        }
+
+        if (!isValidPath(line, firstSpace + 1, secondSpace)) {
+            throw new HTTPRequestLineFormatException("Invalid path: " + text(line, firstSpace + 1, secondSpace));
+        }
+        String path = new String(line, firstSpace + 1, secondSpace - firstSpace - 1, HTTPEncodingUtil.BINARY_CHARSET);
+
+        String version = HTTPVersion.getDefaultVersion();
+        if (!equalsAscii(line, secondSpace + 1, to, version)) {
+            throw new HTTPRequestLineFormatException("Version is not supported: " + text(line, secondSpace + 1, to));
+        }
+
+        requestLine = new HTTPRequest.HTTPRequestLine(method, path, version);
+    }
+
+    private void parseField(byte[] line, int from, int to) throws HTTPRequestHeadersFormatException {
+        int colon = indexOf(line, from, to, (byte) ':');
+        if (colon == -1) {
+            throw new HTTPRequestHeadersFormatException("Invalid field: " + text(line, from, to));
+        }
+        if (!isValidFieldName(line, from, colon)) {
+            throw new HTTPRequestHeadersFormatException("Invalid field name: " + text(line, from, colon));
+        }
+        int valueFrom = colon + 1;
+        int valueTo = to;
+        while (valueFrom < valueTo && isWhitespace(line[valueFrom])) valueFrom++;
+        while (valueTo > valueFrom && isWhitespace(line[valueTo - 1])) valueTo--;
+
+        String name = new String(line, from, colon - from, HTTPEncodingUtil.BINARY_CHARSET);
+        fields.put(name, text(line, valueFrom, valueTo));
+    }
+
+    private void onHeadersEnd() throws HTTPRequestFormatException {
+        for (Map.Entry<String, String> entry : fields.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase("Content-Length")) {
+                contentLength = parseContentLength(entry.getValue());
+            } else if (entry.getKey().equalsIgnoreCase("Transfer-Encoding")) {
+                transferEncoded = true;
+            }
+        }
+        if (transferEncoded) {
+            state = State.DONE;
+            return;
+        }
+
+        if (requestLine.getMethod().equals("GET") && contentLength > 0) {
+            throw new HTTPRequestFormatException("GET method cannot have body");
+        } else if (requestLine.getMethod().equals("POST") && contentLength == 0) {
+            throw new HTTPRequestFormatException("POST method must have body");
+        }
+
+        // 没有上限时，缓冲在内存中的消息体仍然受数组长度限制
+        if (contentLength > maxBodySize || (bodyStream == null && contentLength > Integer.MAX_VALUE - 8)) {
+            throw new HTTPPayloadTooLargeException("Body exceeds " + maxBodySize + " bytes: " + contentLength);
+        }
+
+        if (contentLength == 0 || bodyStream != null) {
+            state = State.DONE;
+        } else {
+            body = new byte[(int) contentLength];
+            state = State.BODY;
+        }
+    }
+
+    private static long parseContentLength(String value) throws HTTPRequestHeadersFormatException {
+        // 与HTTPMessageFramer相同，最多18位，不会溢出
+        if (value.isEmpty() || value.length() > 18) {
+            throw new HTTPRequestHeadersFormatException("Invalid Content-Length: " + value);
+        }
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new HTTPRequestHeadersFormatException("Invalid Content-Length: " + value);
+            }
+            length = length * 10 + (c - '0');
+        }
+        return length;
+    }
+
+    private void appendLine(byte[] buffer, int offset, int length) throws HTTPRequestFormatException {
+        if (lineLength + length > MAX_LINE_LENGTH) {
+            throw new HTTPRequestFormatException("Line is too long");
+        }
+        if (lineLength + length > lineBuffer.length) {
+            byte[] expanded = new byte[Math.max(lineBuffer.length * 2, lineLength + length)];
+            System.arraycopy(lineBuffer, 0, expanded, 0, lineLength);
+            lineBuffer = expanded;
+        }
+        System.arraycopy(buffer, offset, lineBuffer, lineLength, length);
+        lineLength += length;
+    }
+
+    // 与原先的PATH_REGEX一致：(/|(/[\w-~\.]+)+/?)(\?\w+(=\w*)?(&\w+(=\w*)?)*)?
+    private static boolean isValidPath(byte[] line, int from, int to) {
+        if (from == to || line[from] != '/') return false;
+        int position = from;
+        int query = indexOf(line, from, to, (byte) '?');
+        int pathEnd = query == -1 ? to : query;
+        while (position < pathEnd) {
+            // position指向'/'，后面是一个非空的段，或者是结尾的'/'
+            int segmentEnd = position + 1;
+            while (segmentEnd < pathEnd && isPathChar(line[segmentEnd])) segmentEnd++;
+            if (segmentEnd == position + 1) {
+                if (segmentEnd != pathEnd) return false;
+            } else if (segmentEnd < pathEnd && line[segmentEnd] != '/') {
+                return false;
+            }
+            position = segmentEnd;
+        }
+        return query == -1 || isValidQuery(line, query + 1, to);
+    }
+
+    private static boolean isValidQuery(byte[] line, int from, int to) {
+        int position = from;
+        while (true) {
+            int nameStart = position;
+            while (position < to && isWordChar(line[position])) position++;
+            if (position == nameStart) return false;
+            if (position < to && line[position] == '=') {
+                position++;
+                while (position < to && isWordChar(line[position])) position++;
+            }
+            if (position == to) return true;
+            if (line[position] != '&') return false;
+            position++;
+        }
+    }
+
+    // 与原先的KEY_REGEX一致：[A-Za-z]+(-[A-Za-z]*)*
+    private static boolean isValidFieldName(byte[] line, int from, int to) {
+        if (from == to || !isLetter(line[from])) return false;
+        for (int i = from + 1; i < to; i++) {
+            if (!isLetter(line[i]) && line[i] != '-') return false;
+        }
+        return true;
+    }
+
+    private static boolean isPathChar(byte b) {
+        return isWordChar(b) || b == '-' || b == '~' || b == '.';
+    }
+
+    private static boolean isWordChar(byte b) {
+        return isLetter(b) || (b >= '0' && b <= '9') || b == '_';
+    }
+
+    private static boolean isLetter(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int trimCR(byte[] buffer, int from, int to) {
+        return to > from && buffer[to - 1] == '\r' ? to - 1 : to;
+    }
+
+    private static int indexOf(byte[] buffer, int from, int to, byte target) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == target) return i;
+        }
+        return -1;
+    }
+
+    private static boolean equalsAscii(byte[] buffer, int from, int to, String expected) {
+        if (to - from != expected.length()) return false;
+        for (int i = 0; i < expected.length(); i++) {
+            if (buffer[from + i] != expected.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static String text(byte[] buffer, int from, int to) {
+        return new String(buffer, from, to - from, HTTPEncodingUtil.TEXT_CHARSET);
+    }
+}
@@ -2,17 +2,34 @@ package HTTP.message;
 
 import HTTP.exception.*;
 import HTTP.utils.HTTPEncodingUtil;
+import HTTP.utils.HTTPOutputBuffer;
+import TCP.TCPPayload;
 import HTTP.rule.HTTPVersion;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.function.Supplier;
 
 public class HTTPResponse {
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = HTTPEncodingUtil.encodeText("Transfer-Encoding: chunked\r\n");
+
     private HTTPStatusLine statusLine;
     private HTTPResponseHeaders headers;
     private HTTPResponseBody body;
+    // 冻结后预先序列化好的完整报文
+    private byte[] serialized;
+    // serialized中头部字段结束的位置，即结尾空行之前，用于在发送时插入额外的头部字段
+    private int fieldsEnd;
 
     public static class HTTPStatusLine {
         private static final HashMap<Integer, String> statusCodes = new HashMap<>();
+        // 默认版本下各状态码预先编码好的状态行，包括结尾的CRLF
+        private static final HashMap<Integer, byte[]> encodedStatusLines = new HashMap<>();
 
         private String version;
         private int statusCode;
@@ -21,6 +38,7 @@ public class HTTPResponse {
 
         static {
             statusCodes.put(200, "OK");
+            statusCodes.put(206, "Partial Content");
             statusCodes.put(301, "Moved Permanently");
             statusCodes.put(302, "Found");
             statusCodes.put(304, "Not Modified");
@@ -29,7 +47,16 @@ public class HTTPResponse {
             statusCodes.put(404, "Not Found");
             statusCodes.put(405, "Method Not Allowed");
             statusCodes.put(409, "Conflict");
+            statusCodes.put(411, "Length Required");
+            statusCodes.put(413, "Payload Too Large");
+            statusCodes.put(416, "Range Not Satisfiable");
             statusCodes.put(500, "Internal Server Error");
+            statusCodes.put(503, "Service Unavailable");
+
+            for (Map.Entry<Integer, String> entry : statusCodes.entrySet()) {
+                encodedStatusLines.put(entry.getKey(), HTTPEncodingUtil.encodeText(
+                        HTTPVersion.getDefaultVersion() + " " + entry.getKey() + " " + entry.getValue() + "\r\n"));
+            }
         }
 
         public HTTPStatusLine() {
@@ -81,10 +108,25 @@ public class HTTPResponse {
         public byte[] getBytes() {
             return HTTPEncodingUtil.encodeText(String.join(" ", version, String.valueOf(statusCode), statusMessage));
         }
+
+        /**
+         * 写入状态行及结尾的CRLF
+         */
+        public void writeTo(HTTPOutputBuffer buffer) {
+            byte[] encoded = encodedStatusLines.get(statusCode);
+            if (encoded != null && HTTPVersion.getDefaultVersion().equals(version)) {
+                buffer.write(encoded);
+            } else {
+                buffer.writeText(version).write((byte) ' ')
+                        .writeText(String.valueOf(statusCode)).write((byte) ' ')
+                        .writeText(statusMessage).writeCRLF();
+            }
+        }
     }
 
     public static class HTTPResponseHeaders {
         private static final String KEY_REGEX = "[A-Za-z]+(-[A-Za-z]*)*";
+        private static final byte[] FIELD_SEPARATOR = {':', ' '};
 
         private final HashMap<String, String> fields = new HashMap<>();
         private boolean modifiable;
@@ -135,16 +177,31 @@ public class HTTPResponse {
         }
 
         public byte[] getBytes() {
-            StringJoiner joiner = new StringJoiner("\r\n", "", "\r\n");
+            HTTPOutputBuffer buffer = HTTPOutputBuffer.get();
+            writeTo(buffer);
+            return buffer.toByteArray();
+        }
+
+        /**
+         * 写入所有头部字段，每个字段以CRLF结尾，不包括头部结束的空行
+         */
+        public void writeTo(HTTPOutputBuffer buffer) {
             for (Map.Entry<String, String> entry : fields.entrySet()) {
-                joiner.add(entry.getKey() + ": " + entry.getValue());
+                buffer.writeText(entry.getKey()).write(FIELD_SEPARATOR).writeText(entry.getValue()).writeCRLF();
             }
-            return HTTPEncodingUtil.encodeText(joiner.toString());
         }
     }
 
     public static class HTTPResponseBody {
         private byte[] body;
+        // 不为null时消息体是该文件的内容，发送时由TCP层直接从文件写入socket
+        private Path file;
+        private long fileLength;
+        // 不为null时消息体按分块传输编码，发送时逐块从来源取出
+        private HTTPChunkSource chunkSource;
+        // 不为null时消息体由TCP层的数据组成，例如文件的部分区间，每次发送时重新生成
+        private Supplier<TCPPayload> payloadFactory;
+        private long payloadLength;
         private boolean modifiable;
 
         public HTTPResponseBody() {
@@ -160,14 +217,124 @@ public class HTTPResponse {
         public void setBody(byte[] body) {
             if (!modifiable) return;
             this.body = body;
+            this.file = null;
+            this.chunkSource = null;
+            this.payloadFactory = null;
+        }
+
+        /**
+         * 使用文件内容作为消息体，文件不会被读入内存
+         */
+        public void setFile(Path file) throws IOException {
+            if (!modifiable) return;
+            this.fileLength = Files.size(file);
+            this.file = file;
+            this.body = null;
+            this.chunkSource = null;
+            this.payloadFactory = null;
+        }
+
+        /**
+         * 使用分块传输编码发送消息体，内容在发送时才逐块生成
+         * 发送时自动添加Transfer-Encoding: chunked字段，不应再设置Content-Length
+         */
+        public void setChunked(HTTPChunkSource source) {
+            if (!modifiable) return;
+            this.chunkSource = source;
+            this.body = null;
+            this.file = null;
+            this.payloadFactory = null;
+        }
+
+        /**
+         * 使用TCP层的数据作为消息体，例如文件的部分区间或由多段组成的multipart消息体
+         * @param factory 每次发送时调用，生成的数据长度应为length
+         */
+        public void setPayload(Supplier<TCPPayload> factory, long length) {
+            if (!modifiable) return;
+            this.payloadFactory = factory;
+            this.payloadLength = length;
+            this.body = null;
+            this.file = null;
+            this.chunkSource = null;
+        }
+
+        /**
+         * 消息体是否是内存中的字节数组，只有这种消息体可以被冻结
+         */
+        public boolean isInMemory() {
+            return file == null && chunkSource == null && payloadFactory == null;
+        }
+
+        public boolean isChunked() {
+            return chunkSource != null;
+        }
+
+        public boolean isFile() {
+            return file != null;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        /**
+         * @return 消息体长度，分块传输时长度未知，返回-1
+         */
+        public long getLength() {
+            if (chunkSource != null) return -1;
+            if (payloadFactory != null) return payloadLength;
+            return file != null ? fileLength : body.length;
         }
 
         public byte[] getBody() {
-            return body;
+            return getBytes();
         }
 
+        /**
+         * 分块传输时会取出来源中的全部数据，之后消息体变为普通的字节数组
+         */
         public byte[] getBytes() {
-            return body;
+            try {
+                if (chunkSource != null) {
+                    body = drain(chunkSource);
+                    chunkSource = null;
+                }
+                if (payloadFactory != null) return drain(payloadFactory.get(), payloadLength);
+                if (file == null) return body;
+                return Files.readAllBytes(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static byte[] drain(HTTPChunkSource source) throws IOException {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] chunk;
+                while ((chunk = source.nextChunk()) != null) {
+                    out.writeBytes(chunk);
+                }
+                return out.toByteArray();
+            } finally {
+                source.close();
+            }
+        }
+
+        private static byte[] drain(TCPPayload payload, long length) throws IOException {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(length, Integer.MAX_VALUE));
+                payload.writeTo(Channels.newChannel(out));
+                return out.toByteArray();
+            } finally {
+                payload.release();
+            }
+        }
+
+        TCPPayload toPayload() {
+            if (chunkSource != null) return new ChunkedPayload(chunkSource);
+            if (payloadFactory != null) return payloadFactory.get();
+            return file != null ? TCPPayload.ofFile(file, 0, fileLength) : TCPPayload.of(body);
         }
     }
 
@@ -204,15 +371,143 @@ public class HTTPResponse {
         headers = new HTTPResponseHeaders(parts2[0]);
 
         if (parts2.length == 2) {
-            body = new HTTPResponseBody(parts2[1]);
+            String content = parts2[1];
+            String transferEncoding = headers.get("Transfer-Encoding");
+            if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+                content = decodeChunked(content);
+            }
+            body = new HTTPResponseBody(content);
         }
     }
 
+    /**
+     * 把分块传输编码的消息体还原为原始数据，忽略块扩展和结尾的trailer字段
+     * @param content 按字节解码的消息体
+     */
+    private static String decodeChunked(String content) throws HTTPResponseFormatException {
+        StringBuilder sb = new StringBuilder();
+        int pos = 0;
+        while (true) {
+            int lineEnd = content.indexOf("\r\n", pos);
+            if (lineEnd == -1) {
+                throw new HTTPResponseFormatException("Incomplete chunked body");
+            }
+            int sizeEnd = content.indexOf(';', pos);
+            if (sizeEnd == -1 || sizeEnd > lineEnd) sizeEnd = lineEnd;
+            int size;
+            try {
+                size = Integer.parseInt(content.substring(pos, sizeEnd).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new HTTPResponseFormatException("Invalid chunk size: " + content.substring(pos, sizeEnd));
+            }
+            if (size < 0) {
+                throw new HTTPResponseFormatException("Invalid chunk size: " + size);
+            }
+            if (size == 0) {
+                return sb.toString();
+            }
+            int dataStart = lineEnd + 2;
+            if (dataStart + size + 2 > content.length()) {
+                throw new HTTPResponseFormatException("Incomplete chunked body");
+            }
+            sb.append(content, dataStart, dataStart + size);
+            pos = dataStart + size + 2;
+        }
+    }
+
+    /**
+     * 写入状态行和头部，包括头部结束的空行
+     */
+    public void writeHead(HTTPOutputBuffer buffer) {
+        statusLine.writeTo(buffer);
+        headers.writeTo(buffer);
+        buffer.writeCRLF();
+    }
+
+    /**
+     * 头部在线程复用的缓冲区中序列化，消息体只复制一次到结果数组
+     */
     public byte[] getBytes() {
-        return HTTPEncodingUtil.encodeBinary(
-                String.join("\r\n",
-                        HTTPEncodingUtil.decodeBinary(statusLine.getBytes()),
-                        HTTPEncodingUtil.decodeBinary(headers.getBytes()),
-                        HTTPEncodingUtil.decodeBinary(body.getBytes())) );
+        if (serialized != null) return serialized;
+        HTTPOutputBuffer buffer = HTTPOutputBuffer.get();
+        writeHead(buffer);
+        return joinBody(buffer);
+    }
+
+    /**
+     * 转换为TCP层发送的数据，文件消息体不经过堆内存
+     */
+    public TCPPayload toPayload() {
+        return toPayload(new byte[0][]);
+    }
+
+    /**
+     * 转换为TCP层发送的数据，并在头部末尾依次插入预先编码好的字段，响应本身不会被修改
+     * @param extraFields 每项可以包括多个字段，每个字段以CRLF结尾，为null的项被跳过
+     */
+    public TCPPayload toPayload(byte[]... extraFields) {
+        if (serialized != null) {
+            if (extraFields.length == 0) {
+                return TCPPayload.of(serialized);
+            }
+            TCPPayload[] parts = new TCPPayload[extraFields.length + 2];
+            parts[0] = TCPPayload.of(serialized, 0, fieldsEnd);
+            for (int i = 0; i < extraFields.length; i++) {
+                parts[i + 1] = TCPPayload.of(extraFields[i] != null ? extraFields[i] : new byte[0]);
+            }
+            parts[parts.length - 1] = TCPPayload.of(serialized, fieldsEnd, serialized.length - fieldsEnd);
+            return TCPPayload.concat(parts);
+        }
+
+        HTTPOutputBuffer buffer = HTTPOutputBuffer.get();
+        statusLine.writeTo(buffer);
+        headers.writeTo(buffer);
+        for (byte[] fields : extraFields) {
+            if (fields != null) {
+                buffer.write(fields);
+            }
+        }
+        if (body.isChunked() && !headers.contains("Transfer-Encoding")) {
+            buffer.write(TRANSFER_ENCODING_CHUNKED);
+        }
+        buffer.writeCRLF();
+        if (!body.isInMemory()) {
+            return TCPPayload.concat(TCPPayload.of(buffer.toByteArray()), body.toPayload());
+        }
+        return TCPPayload.of(joinBody(buffer));
+    }
+
+    /**
+     * 把缓冲区中的头部和消息体拼成完整报文，消息体只复制一次
+     */
+    private byte[] joinBody(HTTPOutputBuffer head) {
+        byte[] content = body.getBytes();
+        byte[] bytes = new byte[head.size() + content.length];
+        head.copyTo(bytes, 0);
+        System.arraycopy(content, 0, bytes, head.size(), content.length);
+        return bytes;
+    }
+
+    /**
+     * 冻结响应：之后不可再修改，序列化结果只计算一次，可以在多个请求间共享
+     * 消息体为文件时不会冻结内容，仍然每次从文件发送；分块传输的来源只能使用一次，不应冻结
+     */
+    public HTTPResponse freeze() {
+        statusLine.modifiable = false;
+        headers.modifiable = false;
+        body.modifiable = false;
+        if (body.isInMemory()) {
+            HTTPOutputBuffer buffer = HTTPOutputBuffer.get();
+            statusLine.writeTo(buffer);
+            headers.writeTo(buffer);
+            fieldsEnd = buffer.size();
+            buffer.writeCRLF();
+            serialized = joinBody(buffer);
+        }
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return !statusLine.modifiable;
     }
 }
@@ -0,0 +1,108 @@
+package HTTP.rule;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Range请求中的一个字节区间，start和end都包括在内
+ */
+public class ByteRange {
+    // 一个请求中最多的区间数，过多的区间只会增加响应的开销
+    private static final int MAX_RANGES = 16;
+
+    private final long start;
+    private final long end;
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * 生成Content-Range字段的值
+     */
+    public String toContentRange(long size) {
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    /**
+     * 解析Range字段，重叠或相邻的区间会被合并
+     * @param size 资源的总长度
+     * @return 格式错误、单位不是bytes或区间过多时返回null，应忽略Range返回完整内容；没有可满足的区间时返回空列表
+     */
+    public static List<ByteRange> parse(String value, long size) {
+        value = value.trim();
+        if (value.length() < 6 || !value.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+        String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_RANGES) return null;
+
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) return null;
+            long first = parseNumber(spec, 0, dash);
+            long last = parseNumber(spec, dash + 1, spec.length());
+            if (dash > 0 && first == -1) return null;
+            if (first == -1) {
+                // 后缀区间：最后last个字节
+                if (last == -1 || dash + 1 == spec.length()) return null;
+                if (last > 0 && size > 0) {
+                    ranges.add(new ByteRange(Math.max(0, size - last), size - 1));
+                }
+            } else {
+                if (last != -1 && last < first) return null;
+                if (dash + 1 < spec.length() && last == -1) return null;
+                if (first < size) {
+                    ranges.add(new ByteRange(first, last == -1 ? size - 1 : Math.min(last, size - 1)));
+                }
+            }
+        }
+        return merge(ranges);
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        if (ranges.size() < 2) return ranges;
+        ranges.sort(Comparator.comparingLong(ByteRange::getStart));
+        List<ByteRange> merged = new ArrayList<>(ranges.size());
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    /**
+     * @return 为空或格式错误时返回-1
+     */
+    private static long parseNumber(String text, int from, int to) {
+        if (from >= to || to - from > 18) return -1;
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
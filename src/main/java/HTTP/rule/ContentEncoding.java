@@ -0,0 +1,90 @@
+package HTTP.rule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 支持的响应内容编码，按服务器的偏好顺序排列
+ */
+public enum ContentEncoding {
+    GZIP("gzip"),
+    DEFLATE("deflate");
+
+    private final String token;
+
+    ContentEncoding(String token) {
+        this.token = token;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public byte[] encode(byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, content.length / 4));
+        // deflate编码按HTTP的定义是zlib格式，即DeflaterOutputStream的默认格式
+        try (OutputStream encoder = this == GZIP ? new GZIPOutputStream(out) : new DeflaterOutputStream(out)) {
+            encoder.write(content);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 根据Accept-Encoding选择编码，q=0表示不接受
+     * @return 没有可用的编码时返回null
+     */
+    public static ContentEncoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) return null;
+        ContentEncoding best = null;
+        double bestQuality = 0;
+        double wildcardQuality = -1;
+        boolean[] listed = new boolean[values().length];
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.split(";");
+            String coding = parts[0].trim();
+            double quality = parseQuality(parts);
+            if (coding.equals("*")) {
+                wildcardQuality = quality;
+                continue;
+            }
+            for (ContentEncoding encoding : values()) {
+                if (encoding.token.equalsIgnoreCase(coding)) {
+                    listed[encoding.ordinal()] = true;
+                    // 质量相同时按服务器的偏好顺序
+                    if (quality > 0 && (best == null || quality > bestQuality
+                            || (quality == bestQuality && encoding.ordinal() < best.ordinal()))) {
+                        best = encoding;
+                        bestQuality = quality;
+                    }
+                }
+            }
+        }
+        if (best == null && wildcardQuality > 0) {
+            // *匹配所有没有单独列出的编码
+            for (ContentEncoding encoding : values()) {
+                if (!listed[encoding.ordinal()]) return encoding;
+            }
+        }
+        return best;
+    }
+
+    private static double parseQuality(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,57 @@
+package HTTP.server;
+
+import HTTP.utils.FileUtil;
+
+import java.io.File;
+
+/**
+ * 由模板文件生成的预构建资源，例如错误页响应
+ * 只在第一次使用或模板文件被修改时重新生成，模板的修改时间每秒最多检查一次
+ */
+class CannedResource<T> {
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    @FunctionalInterface
+    interface Builder<T> {
+        T build(byte[] template) throws Exception;
+    }
+
+    private final String templatePath;
+    private final Builder<T> builder;
+    private volatile T value;
+    private volatile long templateModifiedTime;
+    private volatile long lastCheckTime;
+
+    CannedResource(String templatePath, Builder<T> builder) {
+        this.templatePath = templatePath;
+        this.builder = builder;
+    }
+
+    T get() throws Exception {
+        T current = value;
+        long now = System.currentTimeMillis();
+        if (current != null && now - lastCheckTime < CHECK_INTERVAL_MILLIS) {
+            return current;
+        }
+        synchronized (this) {
+            lastCheckTime = now;
+            long modifiedTime = new File(templatePath).lastModified();
+            if (value == null || modifiedTime != templateModifiedTime) {
+                value = builder.build(FileUtil.read(templatePath));
+                templateModifiedTime = modifiedTime;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * 启动时预先生成，模板缺失时等到使用时再报错
+     */
+    void preload() {
+        try {
+            get();
+        } catch (Exception e) {
+            System.out.println("Failed to load template: " + templatePath);
+        }
+    }
+}
@@ -1,38 +1,118 @@
 package HTTP.server;
 
 import HTTP.exception.HTTPMethodNotAllowedException;
+import HTTP.exception.HTTPLengthRequiredException;
+import HTTP.exception.HTTPPayloadTooLargeException;
 import HTTP.exception.HTTPRequestFormatException;
 import HTTP.exception.HTTPResponseFormatException;
+import HTTP.message.HTTPMessageFramer;
 import HTTP.message.HTTPRequest;
 import HTTP.message.HTTPResponse;
+import HTTP.rule.ByteRange;
+import HTTP.rule.ContentEncoding;
 import HTTP.rule.HTTPVersion;
+import HTTP.server.cache.CachedContent;
+import HTTP.server.cache.FileMetadata;
+import HTTP.server.cache.FileMetadataCache;
+import HTTP.server.cache.MappedFileCache;
+import HTTP.server.cache.StaticContentCache;
+import HTTP.server.router.RouteMatch;
+import HTTP.server.router.Router;
+import HTTP.server.session.Session;
+import HTTP.server.session.SessionStore;
+import HTTP.server.user.PasswordFormatException;
+import HTTP.server.user.User;
+import HTTP.server.user.UserManager;
+import HTTP.server.user.UsernameFormatException;
+import HTTP.utils.ETagUtil;
 import HTTP.utils.FileUtil;
+import HTTP.utils.HTTPDateUtil;
 import HTTP.utils.HTTPEncodingUtil;
+import TCP.TCPConnection;
+import TCP.TCPPayload;
 import TCP.TCPServer;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.nio.file.FileSystems;
+import java.nio.file.Path;
 import java.util.HashMap;
-import java.util.IllegalFormatException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 public class HTTPServer extends TCPServer {
     private static final String PATH_SEPARATOR = FileSystems.getDefault().getSeparator();
-    private static final Map<String, String> sessions = new ConcurrentHashMap<>();
     private static final String ROOT_PATH = "." + PATH_SEPARATOR + "root" + PATH_SEPARATOR;
     private static final String DEFAULT_FILE_PATH = ROOT_PATH + "welcome.txt";
     private static final String MSG_BODY_PATH = ROOT_PATH + "msgbody" + PATH_SEPARATOR;
     private static final String SERVER_NAME = "Simple HTTP Server";
-    private final HashMap<String, Function<HTTPRequest, HTTPResponse>> routerMap = new HashMap<>();
+    private static final String SESSION_COOKIE = "SESSIONID";
+    private static final int MAX_CACHED_REDIRECTS = 1024;
+    private static final int DEFAULT_MAX_KEEP_ALIVE_REQUESTS = 100;
+    private static final long DEFAULT_ASYNC_TIMEOUT = 30000;
+    private static final long DEFAULT_MAX_REQUEST_BODY_SIZE = 10 * 1024 * 1024;
+    // 超过该长度的请求体不缓冲在内存中，处理函数通过HTTPRequestBody.getStream读取
+    private static final long REQUEST_STREAM_THRESHOLD = 64 * 1024;
+    // 小于该长度的内容压缩收益不大，直接发送
+    private static final int MIN_COMPRESS_SIZE = 1024;
+    private static final byte[] CONNECTION_CLOSE = HTTPEncodingUtil.encodeText("Connection: close\r\n");
+    private final Router<RouteHandler> router = new Router<>();
+    // 永久重定向(301)和临时重定向(302)，启动时编译进router
     private final HashMap<String, String> redirectMap = new HashMap<>();
+    private final HashMap<String, String> temporaryRedirectMap = new HashMap<>();
+    private final HTTPMessageFramer requestFramer =
+            new HTTPMessageFramer(REQUEST_STREAM_THRESHOLD, DEFAULT_MAX_REQUEST_BODY_SIZE, true);
+    private final StaticContentCache contentCache = new StaticContentCache(typeMap::get);
+    private final MappedFileCache mappedFileCache = new MappedFileCache();
+    // 文档目录的元数据和目录列表，由WatchService保持最新
+    private final FileMetadataCache fileMetadataCache = new FileMetadataCache(ROOT_PATH);
+    private final SessionStore sessionStore = new SessionStore();
+    private final UserManager userManager = new UserManager();
+
+    // 预先构建的错误响应，模板文件修改后自动重建
+    private final CannedResource<HTTPResponse> badRequest =
+            new CannedResource<>(MSG_BODY_PATH + "400.txt", content -> buildErrorResponse(400, content));
+    private final CannedResource<HTTPResponse> notFound =
+            new CannedResource<>(MSG_BODY_PATH + "404.txt", content -> buildErrorResponse(404, content));
+    private final CannedResource<HTTPResponse> lengthRequired =
+            new CannedResource<>(MSG_BODY_PATH + "411.txt", content -> buildErrorResponse(411, content));
+    private final CannedResource<HTTPResponse> payloadTooLarge =
+            new CannedResource<>(MSG_BODY_PATH + "413.txt", content -> buildErrorResponse(413, content));
+    private final CannedResource<HTTPResponse> internalServerError =
+            new CannedResource<>(MSG_BODY_PATH + "500.txt", content -> buildErrorResponse(500, content));
+    private final CannedResource<String> methodNotAllowedTemplate =
+            new CannedResource<>(MSG_BODY_PATH + "405.txt", HTTPEncodingUtil::decodeText);
+    private final Map<String, HTTPResponse> redirectCache = new ConcurrentHashMap<>();
+
+    // 单个连接上最多处理的请求数
+    private int maxKeepAliveRequests = DEFAULT_MAX_KEEP_ALIVE_REQUESTS;
+    // 下标为该连接剩余可处理的请求数，在启动处理线程之前全部编码，之后只读
+    private byte[][] keepAliveFields;
+    // 异步处理函数的超时时间(毫秒)，超时后回复500
+    private long asyncTimeout = DEFAULT_ASYNC_TIMEOUT;
+
+    // 304响应中需要保留的字段
+    private static final String[] NOT_MODIFIED_FIELDS = {"ETag", "Last-Modified", "Cache-Control", "Vary"};
+    // 206响应中从完整响应复制的字段
+    private static final String[] PARTIAL_CONTENT_FIELDS = {"ETag", "Last-Modified", "Cache-Control", "Vary", "Accept-Ranges"};
 
     // 支持的MIME类型
     private static final Map<String, String> typeMap = new HashMap<>();
+    // 可以压缩的MIME类型，图片本身已经压缩过
+    private static final Set<String> compressibleTypes = new HashSet<>();
 
     static {
         typeMap.put("html", "text/html");
@@ -40,64 +120,299 @@ public class HTTPServer extends TCPServer {
         typeMap.put("json", "application/json");
         typeMap.put("jpg", "image/jpeg");
         typeMap.put("png", "image/png");
+
+        compressibleTypes.add("text/html");
+        compressibleTypes.add("text/plain");
+        compressibleTypes.add("application/json");
     }
 
     {
-        routerMap.put("/", this::handleDefault);
-        routerMap.put("/register", this::handleRegister);
-        routerMap.put("/login", this::handleLogin);
-        routerMap.put("/document", this::handleDocument);
+        framer = requestFramer;
+
+        // 内置路由直接写入router，不调用可被子类覆盖的addRoute
+        router.add("/", RouteHandler.of(this::handleDefault));
+        router.add("/register", RouteHandler.async(this::handleRegister));
+        router.add("/login", RouteHandler.async(this::handleLogin));
+        router.add("/logout", RouteHandler.of(this::handleLogout));
+        router.add("/document", RouteHandler.of(this::handleDocument));
+        router.add("/document/*", RouteHandler.of(this::handleDocument));
 
         redirectMap.put("/file", "/document");
+        redirectMap.put("/old-page", "/");
+        temporaryRedirectMap.put("/temp-redirect", "/");
+        compileRedirects(redirectMap, true);
+        compileRedirects(temporaryRedirectMap, false);
     }
 
     public HTTPServer(int port) {
-        super(port);
+        this(port, Engine.BLOCKING);
+    }
+
+    public HTTPServer(int port, Engine engine) {
+        super(port, engine);
+        badRequest.preload();
+        notFound.preload();
+        lengthRequired.preload();
+        payloadTooLarge.preload();
+        internalServerError.preload();
+        methodNotAllowedTemplate.preload();
+    }
+
+    /**
+     * 设置单个持久连接上最多处理的请求数，需在服务器启动前调用
+     */
+    public void setMaxKeepAliveRequests(int maxKeepAliveRequests) {
+        if (maxKeepAliveRequests <= 0) {
+            throw new IllegalArgumentException("Invalid max keep-alive requests: " + maxKeepAliveRequests);
+        }
+        this.maxKeepAliveRequests = maxKeepAliveRequests;
+    }
+
+    public int getMaxKeepAliveRequests() {
+        return maxKeepAliveRequests;
+    }
+
+    /**
+     * 设置请求体的最大长度(字节)，超过时回复413并关闭连接
+     */
+    public void setMaxRequestBodySize(long maxRequestBodySize) {
+        if (maxRequestBodySize < 0) {
+            throw new IllegalArgumentException("Invalid max request body size: " + maxRequestBodySize);
+        }
+        requestFramer.setMaxBodySize(maxRequestBodySize);
+    }
+
+    public long getMaxRequestBodySize() {
+        return requestFramer.getMaxBodySize();
+    }
+
+    /**
+     * 注册处理函数，pattern支持:param参数段和末尾的*通配段，需在服务器启动前调用
+     * 处理函数通过request.getPathParameter和getPathWildcard读取匹配到的值
+     */
+    public void addRoute(String pattern, Function<HTTPRequest, HTTPResponse> handler) {
+        router.add(pattern, RouteHandler.of(handler));
+    }
+
+    /**
+     * 注册异步处理函数，返回的future完成前连接所在的线程可以继续处理其他连接
+     * 同一连接上的响应仍按请求顺序发送
+     */
+    public void addAsyncRoute(String pattern, Function<HTTPRequest, CompletableFuture<HTTPResponse>> handler) {
+        router.add(pattern, RouteHandler.async(handler));
+    }
+
+    /**
+     * 注册重定向，location中的*替换为pattern通配段匹配的部分
+     */
+    public void addRedirect(String pattern, String location, boolean permanent) {
+        router.addRedirect(pattern, location, permanent);
+    }
+
+    /**
+     * 设置异步处理函数的超时时间(毫秒)，0表示不超时
+     */
+    public void setAsyncTimeout(long asyncTimeout) {
+        if (asyncTimeout < 0) {
+            throw new IllegalArgumentException("Invalid async timeout: " + asyncTimeout);
+        }
+        this.asyncTimeout = asyncTimeout;
+    }
+
+    public long getAsyncTimeout() {
+        return asyncTimeout;
     }
 
     public void run() {
-        run(bytes -> {
-            if (bytes == null || bytes.length == 0) return null;
-            showReceivedMessage.accept(bytes);
-            return handleRequest(bytes);
-        });
+        keepAliveFields = encodeKeepAliveFields();
+        fileMetadataCache.start();
+        serve(this::handleMessage);
     }
 
-    private byte[] handleRequest(byte[] message) {
-        String messageStr = HTTPEncodingUtil.decodeBinary(message);
+    @Override
+    public void stop() {
+        super.stop();
+        fileMetadataCache.close();
+        // 刷写剩余的日志，结束刷写线程和计算密码摘要的线程池
+        try {
+            userManager.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private TCPPayload handleMessage(TCPConnection connection, byte[] message) {
+        if (message == null || message.length == 0) return null;
+        showReceivedMessage.accept(message);
+
         HTTPRequest request;
         try {
-            request = new HTTPRequest(messageStr);
+            // 较大的请求体不在message中，直接从连接读取
+            request = HTTPRequest.parse(message, connection.getStream(), getMaxRequestBodySize());
+        } catch (HTTPPayloadTooLargeException e) {
+            // 请求体没有被读取，无法继续解析后续请求
+            return toClosingPayload(handlePayloadTooLarge());
+        } catch (HTTPLengthRequiredException e) {
+            // 分块传输的请求体同样没有被读取
+            return toClosingPayload(handleLengthRequired());
         } catch (HTTPRequestFormatException e) {
             e.printStackTrace();
-            return handleBadRequest().getBytes();
+            // 报文格式错误时无法确定后续数据的边界，回复后关闭连接
+            return toClosingPayload(handleBadRequest());
         } catch (HTTPMethodNotAllowedException e) {
-            return handleMethodNotAllowed(e.getMessage()).getBytes();
+            return toClosingPayload(handleMethodNotAllowed(e.getMessage()));
+        }
+
+        int remaining = maxKeepAliveRequests - connection.getMessageCount();
+        boolean closing = remaining <= 0 || "close".equalsIgnoreCase(request.getHeaders().getIgnoreCase("Connection"));
+
+        RouteMatch<RouteHandler> match = router.match(request.getRequestLine().getPath());
+        if (match != null && !match.isRedirect()) {
+            // 匹配结果由当前线程复用，复制到请求中，异步处理函数在其他线程中也能读取
+            request.setPathParameters(match.getParameters(), match.getWildcard());
+        }
+        if (match != null && !match.isRedirect() && match.getHandler().isAsync()) {
+            CompletableFuture<HTTPResponse> future;
+            try {
+                future = match.getHandler().handleAsync(request);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                future = CompletableFuture.completedFuture(handleInternalServerError());
+            }
+            if (asyncTimeout > 0) {
+                future = future.orTimeout(asyncTimeout, TimeUnit.MILLISECONDS);
+            }
+            return TCPPayload.deferred(future
+                    .thenApply(response -> toPayload(response, closing, remaining))
+                    .exceptionally(e -> {
+                        e.printStackTrace();
+                        return toPayload(handleInternalServerError(), closing, remaining);
+                    }));
+        }
+        if (match != null && !match.isRedirect() && getEngine() == Engine.NIO) {
+            return handleOnThreadPool(match.getHandler(), request, closing, remaining);
+        }
+        return toPayload(handleRequest(match, request), closing, remaining);
+    }
+
+    /**
+     * NIO引擎下同步处理函数可能读取磁盘或阻塞，在线程池中执行，不占用事件循环
+     * 生成响应后与异步处理函数相同，由连接所在的事件循环继续发送；匹配结果由当前线程复用，只传递处理函数
+     */
+    private TCPPayload handleOnThreadPool(RouteHandler handler, HTTPRequest request, boolean closing, int remaining) {
+        try {
+            return TCPPayload.deferred(CompletableFuture
+                    .supplyAsync(() -> toPayload(handleRoute(handler, request), closing, remaining), threadPool)
+                    .exceptionally(e -> {
+                        e.printStackTrace();
+                        return toPayload(handleInternalServerError(), closing, remaining);
+                    }));
+        } catch (RejectedExecutionException e) {
+            // 服务器正在停止
+            return toClosingPayload(handleInternalServerError());
+        }
+    }
+
+    /**
+     * 发送完成后关闭连接的响应
+     */
+    private static TCPPayload toClosingPayload(HTTPResponse response) {
+        return TCPPayload.closing(response.toPayload(HTTPDateUtil.currentDateField(), CONNECTION_CLOSE));
+    }
+
+    private TCPPayload toPayload(HTTPResponse response, boolean closing, int remaining) {
+        if (response == null) {
+            response = handleInternalServerError();
+        }
+        if (closing) {
+            return toClosingPayload(response);
+        }
+        return response.toPayload(HTTPDateUtil.currentDateField(), getKeepAliveFields(remaining));
+    }
+
+    /**
+     * Connection和Keep-Alive字段，timeout为空闲超时时间，max为该连接剩余可处理的请求数
+     */
+    private byte[] getKeepAliveFields(int remaining) {
+        return keepAliveFields[remaining];
+    }
+
+    /**
+     * 在启动处理线程之前调用，线程的启动保证处理线程能看到完整的内容
+     */
+    private byte[][] encodeKeepAliveFields() {
+        byte[][] fields = new byte[maxKeepAliveRequests][];
+        for (int remaining = 0; remaining < fields.length; remaining++) {
+            String value = "Connection: keep-alive\r\n";
+            if (getIdleTimeout() > 0) {
+                value += "Keep-Alive: timeout=" + Math.max(1, getIdleTimeout() / 1000) + ", max=" + remaining + "\r\n";
+            }
+            fields[remaining] = HTTPEncodingUtil.encodeText(value);
+        }
+        return fields;
+    }
+
+    private HTTPResponse handleRequest(RouteMatch<RouteHandler> match, HTTPRequest request) {
+        if (match == null) {
+            return handleNotFound();
+        }
+        if (match.isRedirect()) {
+            return handleRedirect(match.getRedirectStatus(), match.getRedirectLocation());
         }
-        String path = getRouter(request.getRequestLine().getPath());
-        if (!routerMap.containsKey(path)) {
-            return handleNotFound().getBytes();
+        return handleRoute(match.getHandler(), request);
+    }
+
+    private HTTPResponse handleRoute(RouteHandler handler, HTTPRequest request) {
+        try {
+            return handler.handle(request);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return handleInternalServerError();
         }
-        return routerMap.get(path).apply(request).getBytes();
     }
 
-    private String getRouter(String path) {
-        int index = path.indexOf('/', 1);
-        return index == -1 ? path : path.substring(0, index);
+    public StaticContentCache getContentCache() {
+        return contentCache;
+    }
+
+    public MappedFileCache getMappedFileCache() {
+        return mappedFileCache;
+    }
+
+    public FileMetadataCache getFileMetadataCache() {
+        return fileMetadataCache;
+    }
+
+    public SessionStore getSessionStore() {
+        return sessionStore;
+    }
+
+    public UserManager getUserManager() {
+        return userManager;
+    }
+
+    /**
+     * 重定向同时作用于该路径下的所有子路径，例如/file/a重定向到/document/a
+     */
+    private void compileRedirects(Map<String, String> redirects, boolean permanent) {
+        for (Map.Entry<String, String> entry : redirects.entrySet()) {
+            router.addRedirect(entry.getKey(), entry.getValue(), permanent);
+            String target = entry.getValue().endsWith("/") ? entry.getValue() + "*" : entry.getValue() + "/*";
+            router.addRedirect(entry.getKey() + "/*", target, permanent);
+        }
     }
 
     private HTTPResponse handleDefault(HTTPRequest request) {
         HTTPResponse response = new HTTPResponse();
         try {
-            byte[] content = FileUtil.read(DEFAULT_FILE_PATH);
+            CachedContent content = contentCache.get(DEFAULT_FILE_PATH);
 
             response.getStatusLine().setVersion(request.getRequestLine().getVersion());
             response.getStatusLine().setStatusCode(200);
-            response.getHeaders().add("Content-Type", typeMap.get("txt"));
-            response.getHeaders().add("Content-Length", String.valueOf(content.length));
             response.getHeaders().add("Server", SERVER_NAME);
-            response.getBody().setBody(content);
-            return response;
+            response.getHeaders().add("Last-Modified", content.getLastModified());
+            setCachedBody(response, request, content);
+            return checkNotModified(request, response, content.getModifiedTime());
         } catch (FileNotFoundException e) {
             return handleNotFound();
         } catch (IOException | HTTPResponseFormatException e) {
@@ -105,14 +420,135 @@ public class HTTPServer extends TCPServer {
         }
     }
 
-    private HTTPResponse handleRegister(HTTPRequest request) {
-        // TODO
-        return handleInternalServerError();
+    /**
+     * 密码摘要在UserManager的线程池中计算，不占用处理请求的线程
+     */
+    private CompletableFuture<HTTPResponse> handleRegister(HTTPRequest request) {
+        if (!request.getRequestLine().getMethod().equals("POST")) {
+            return CompletableFuture.completedFuture(handleMethodNotAllowed("Only POST method is allowed for this resource"));
+        }
+        if (request.getBody().isStreamed()) {
+            return CompletableFuture.completedFuture(handlePayloadTooLarge());
+        }
+
+        Map<String, String> params = parseFormData(HTTPEncodingUtil.decodeText(request.getBody().getBody()));
+        String username = params.get("username");
+        String password = params.get("password");
+        if (username == null || password == null) {
+            return CompletableFuture.completedFuture(handleJson(400, "Missing username or password"));
+        }
+        CompletableFuture<Boolean> registered;
+        try {
+            registered = userManager.register(username, password);
+        } catch (UsernameFormatException e) {
+            return CompletableFuture.completedFuture(handleJson(400, "Invalid username format"));
+        } catch (PasswordFormatException e) {
+            return CompletableFuture.completedFuture(handleJson(400, "Invalid password format"));
+        }
+        return registered
+                .thenApply(success -> success
+                        ? handleJson(200, "Registration successful")
+                        : handleJson(409, "User already exists"))
+                .exceptionally(this::handlePasswordHasherFailure);
+    }
+
+    private CompletableFuture<HTTPResponse> handleLogin(HTTPRequest request) {
+        if (!request.getRequestLine().getMethod().equals("POST")) {
+            return CompletableFuture.completedFuture(handleMethodNotAllowed("Only POST method is allowed for this resource"));
+        }
+        if (request.getBody().isStreamed()) {
+            return CompletableFuture.completedFuture(handlePayloadTooLarge());
+        }
+
+        Map<String, String> params = parseFormData(HTTPEncodingUtil.decodeText(request.getBody().getBody()));
+        String username = params.get("username");
+        String password = params.get("password");
+        if (username == null || password == null) {
+            return CompletableFuture.completedFuture(handleJson(400, "Missing username or password"));
+        }
+        return userManager.authenticate(username, password)
+                .thenApply(user -> user != null ? handleLoginSuccess(request, user) : handleJson(401, "Invalid credentials"))
+                .exceptionally(this::handlePasswordHasherFailure);
+    }
+
+    private HTTPResponse handleLoginSuccess(HTTPRequest request, User user) {
+        // 登录前的会话作废，登录后使用新的会话ID，避免会话固定
+        sessionStore.invalidate(getCookie(request, SESSION_COOKIE));
+        Session session = sessionStore.create(user.getUsername());
+        Map<String, String> content = new LinkedHashMap<>();
+        content.put("message", "Login successful");
+        content.put("sessionId", session.getId());
+        HTTPResponse response = handleJson(200, content);
+        try {
+            response.getHeaders().add("Set-Cookie", SESSION_COOKIE + "=" + session.getId() + "; Path=/; HttpOnly; SameSite=Lax");
+        } catch (HTTPResponseFormatException e) {
+            return handleInternalServerError();
+        }
+        return response;
+    }
+
+    /**
+     * 密码摘要的线程池已满时回复503，客户端稍后重试
+     */
+    private HTTPResponse handlePasswordHasherFailure(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (!(cause instanceof RejectedExecutionException)) {
+            cause.printStackTrace();
+            return handleInternalServerError();
+        }
+        HTTPResponse response = handleJson(503, "Server busy, please retry later");
+        try {
+            response.getHeaders().add("Retry-After", "1");
+        } catch (HTTPResponseFormatException ex) {
+            return handleInternalServerError();
+        }
+        return response;
+    }
+
+    private HTTPResponse handleLogout(HTTPRequest request) {
+        if (!request.getRequestLine().getMethod().equals("POST")) {
+            return handleMethodNotAllowed("Only POST method is allowed for this resource");
+        }
+        Session session = getSession(request);
+        if (session == null) {
+            return handleJson(401, "Not logged in");
+        }
+        sessionStore.invalidate(session.getId());
+        HTTPResponse response = handleJson(200, "Logout successful");
+        try {
+            response.getHeaders().add("Set-Cookie", SESSION_COOKIE + "=; Path=/; HttpOnly; SameSite=Lax; Max-Age=0");
+        } catch (HTTPResponseFormatException e) {
+            return handleInternalServerError();
+        }
+        return response;
+    }
+
+    /**
+     * 按请求中的会话Cookie查找当前会话，同时延长会话的有效期
+     * @return 未登录或会话已过期时返回null
+     */
+    private Session getSession(HTTPRequest request) {
+        return sessionStore.get(getCookie(request, SESSION_COOKIE));
     }
 
-    private HTTPResponse handleLogin(HTTPRequest request) {
-        // TODO
-        return handleInternalServerError();
+    /**
+     * @return 当前会话的用户名，未登录时返回null
+     */
+    public String getCurrentUsername(HTTPRequest request) {
+        Session session = getSession(request);
+        return session != null ? session.getUsername() : null;
+    }
+
+    private static String getCookie(HTTPRequest request, String name) {
+        String cookies = request.getHeaders().getIgnoreCase("Cookie");
+        if (cookies == null) return null;
+        for (String cookie : cookies.split(";")) {
+            int eq = cookie.indexOf('=');
+            if (eq != -1 && cookie.substring(0, eq).trim().equals(name)) {
+                return cookie.substring(eq + 1).trim();
+            }
+        }
+        return null;
     }
 
     private HTTPResponse handleDocument(HTTPRequest request) {
@@ -122,43 +558,81 @@ public class HTTPServer extends TCPServer {
 
         HTTPResponse response = new HTTPResponse();
         String path = request.getRequestLine().getPath();
-        File file = new File(ROOT_PATH + path);
-        if (!file.exists()) {
+        // 根目录之外的路径返回不存在，之后只使用规范化的路径访问文件
+        FileMetadata metadata = fileMetadataCache.get(ROOT_PATH + path);
+        if (!metadata.exists()) {
             return handleNotFound();
         }
+        String filePath = metadata.getPath().toString();
 
         try {
             response.getStatusLine().setVersion(HTTPVersion.getDefaultVersion());
             response.getStatusLine().setStatusCode(200);
-            if (file.isDirectory()) {
+            if (metadata.isDirectory()) {
                 if (!path.endsWith("/")) {
                     return handleFound(path + "/");
                 }
-                String content = FileUtil.listFiles(ROOT_PATH + path);
-
                 response.getHeaders().add("Content-Type", typeMap.get("txt"));
-                response.getHeaders().add("Content-Length", String.valueOf(content.length()));
-                response.getBody().setBody(HTTPEncodingUtil.encodeText(content));
-            } else {
-                String timestamp = FileUtil.getTimestamp(ROOT_PATH + path);
-
-                if (request.getHeaders().contains("If-Modified-Since") &&
-                        timestamp.equals(request.getHeaders().get("If-Modified-Since"))) {
-                    return handleNotModified(request);
+                byte[] listing = metadata.getListing();
+                if (listing != null) {
+                    response.getHeaders().add("Content-Length", String.valueOf(listing.length));
+                    response.getBody().setBody(listing);
+                } else {
+                    // 较大的目录边遍历边发送，不需要预先计算Content-Length
+                    response.getBody().setChunked(FileUtil.listFilesInChunks(filePath));
                 }
-
-                byte[] content = FileUtil.read(ROOT_PATH + path);
+            } else {
+                // 小文件从缓存中获取，超过缓存条目上限的文件返回null
+                CachedContent content = contentCache.get(metadata);
+                long modifiedTime = content != null ? content.getModifiedTime() : metadata.getModifiedTime();
+                String timestamp = content != null ? content.getLastModified() : FileUtil.formatTimestamp(modifiedTime);
 
                 String extension = FileUtil.getExtension(path);
                 if (extension.isEmpty()) {
                     return handleInternalServerError();
                 }
 
-                response.getHeaders().add("Content-Type", typeMap.get(extension));
-                response.getHeaders().add("Content-Length", String.valueOf(content.length));
+                ByteBuffer mapped = null;
+                Runnable onMappingFault = null;
+                if (content != null) {
+                    setCachedBody(response, request, content);
+                } else {
+                    // 文件内容由TCP层通过transferTo直接发送，不读入内存；只使用预压缩的文件，不在发送时压缩
+                    String contentType = typeMap.get(extension);
+                    File precompressed = null;
+                    if (isCompressible(contentType, metadata.getLength())) {
+                        response.getHeaders().add("Vary", "Accept-Encoding");
+                        if (negotiateEncoding(request) == ContentEncoding.GZIP) {
+                            precompressed = FileUtil.findPrecompressed(filePath, modifiedTime);
+                        }
+                    }
+                    // 大文件不计算内容摘要，ETag由长度和修改时间生成
+                    String etag = ETagUtil.fromMetadata(metadata.getLength(), modifiedTime);
+                    if (precompressed != null) {
+                        response.getBody().setFile(precompressed.toPath());
+                        response.getHeaders().add("Content-Encoding", ContentEncoding.GZIP.getToken());
+                        etag = ETagUtil.withEncoding(etag, ContentEncoding.GZIP.getToken());
+                    } else {
+                        // 频繁请求的文件使用常驻的内存映射发送
+                        mapped = mappedFileCache.get(metadata);
+                        if (mapped != null) {
+                            ByteBuffer buffer = mapped;
+                            // 文件被截断后访问映射区会出错，由TCP层关闭连接，并丢弃这个映射
+                            Runnable onFault = () -> mappedFileCache.invalidate(metadata.getPath(), buffer);
+                            onMappingFault = onFault;
+                            response.getBody().setPayload(() -> TCPPayload.of(buffer, onFault), buffer.capacity());
+                        } else {
+                            response.getBody().setFile(metadata.getPath());
+                        }
+                    }
+                    response.getHeaders().add("ETag", etag);
+                    response.getHeaders().add("Content-Type", contentType);
+                    response.getHeaders().add("Content-Length", String.valueOf(response.getBody().getLength()));
+                }
                 response.getHeaders().add("Last-Modified", timestamp);
                 response.getHeaders().add("Cache-Control", "no-cache");
-                response.getBody().setBody(content);
+                HTTPResponse checked = checkNotModified(request, response, modifiedTime);
+                return checked != response ? checked : checkRange(request, response, mapped, onMappingFault);
             }
             return response;
         } catch (HTTPResponseFormatException | IOException e) {
@@ -166,49 +640,77 @@ public class HTTPServer extends TCPServer {
         }
     }
 
+    /**
+     * 使用缓存的内容作为消息体，可压缩的类型按Accept-Encoding选择编码，压缩结果随缓存条目保存
+     */
+    private void setCachedBody(HTTPResponse response, HTTPRequest request, CachedContent content)
+            throws IOException, HTTPResponseFormatException {
+        response.getHeaders().add("Content-Type", content.getContentType());
+        byte[] body = content.getContent();
+        String contentLength = content.getContentLength();
+        ContentEncoding selected = null;
+        if (isCompressible(content.getContentType(), body.length)) {
+            // 同一URL的响应随Accept-Encoding变化，共享缓存需要区分
+            response.getHeaders().add("Vary", "Accept-Encoding");
+            ContentEncoding encoding = negotiateEncoding(request);
+            if (encoding != null) {
+                byte[] encoded = contentCache.getEncoded(content, encoding);
+                if (encoded.length < body.length) {
+                    response.getHeaders().add("Content-Encoding", encoding.getToken());
+                    body = encoded;
+                    contentLength = String.valueOf(encoded.length);
+                    selected = encoding;
+                }
+            }
+        }
+        response.getHeaders().add("ETag", content.getETag(selected));
+        response.getHeaders().add("Content-Length", contentLength);
+        response.getBody().setBody(body);
+    }
+
+    private static boolean isCompressible(String contentType, long length) {
+        return contentType != null && length >= MIN_COMPRESS_SIZE && compressibleTypes.contains(contentType);
+    }
+
+    private static ContentEncoding negotiateEncoding(HTTPRequest request) {
+        return ContentEncoding.negotiate(request.getHeaders().getIgnoreCase("Accept-Encoding"));
+    }
+
     private HTTPResponse handleBadRequest() {
-        HTTPResponse response = new HTTPResponse();
         try {
-            byte[] content = FileUtil.read(MSG_BODY_PATH + "400.txt");
-
-            response.getStatusLine().setVersion(HTTPVersion.getDefaultVersion());
-            response.getStatusLine().setStatusCode(400);
-            response.getHeaders().add("Content-Type", typeMap.get("txt"));
-            response.getHeaders().add("Content-Length", String.valueOf(content.length));
-            response.getBody().setBody(content);
-            return response;
-        } catch (HTTPResponseFormatException | IOException e) {
+            return badRequest.get();
+        } catch (Exception e) {
             return handleInternalServerError();
         }
     }
 
     private HTTPResponse handleNotFound() {
-        HTTPResponse response = new HTTPResponse();
         try {
-            byte[] content = FileUtil.read(MSG_BODY_PATH + "404.txt");
+            return notFound.get();
+        } catch (Exception e) {
+            return handleInternalServerError();
+        }
+    }
 
-            response.getStatusLine().setVersion(HTTPVersion.getDefaultVersion());
-            response.getStatusLine().setStatusCode(404);
-            response.getHeaders().add("Content-Type", typeMap.get("txt"));
-            response.getHeaders().add("Content-Length", String.valueOf(content.length));
-            response.getBody().setBody(content);
-            return response;
-        } catch (HTTPResponseFormatException | IOException e) {
+    private HTTPResponse handleLengthRequired() {
+        try {
+            return lengthRequired.get();
+        } catch (Exception e) {
             return handleInternalServerError();
         }
     }
 
-    private HTTPResponse handleInternalServerError() {
-        HTTPResponse response = new HTTPResponse();
+    private HTTPResponse handlePayloadTooLarge() {
         try {
-            byte[] content = FileUtil.read(MSG_BODY_PATH + "500.txt");
+            return payloadTooLarge.get();
+        } catch (Exception e) {
+            return handleInternalServerError();
+        }
+    }
 
-            response.getStatusLine().setVersion(HTTPVersion.getDefaultVersion());
-            response.getStatusLine().setStatusCode(500);
-            response.getHeaders().add("Content-Type", typeMap.get("txt"));
-            response.getHeaders().add("Content-Length", String.valueOf(content.length));
-            response.getBody().setBody(content);
-            return response;
+    private HTTPResponse handleInternalServerError() {
+        try {
+            return internalServerError.get();
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException(e);
@@ -219,42 +721,201 @@ public class HTTPServer extends TCPServer {
         HTTPResponse response = new HTTPResponse();
 
         try {
-            String content = HTTPEncodingUtil.decodeText(FileUtil.read(MSG_BODY_PATH + "405.txt"));
-            content = String.format(content, detail);
+            // 模板已预先解码，每个请求只需要格式化
+            byte[] content = HTTPEncodingUtil.encodeText(String.format(methodNotAllowedTemplate.get(), detail));
 
             response.getStatusLine().setVersion(HTTPVersion.getDefaultVersion());
             response.getStatusLine().setStatusCode(405);
             response.getHeaders().add("Content-Type", typeMap.get("txt"));
-            response.getHeaders().add("Content-Length", String.valueOf(content.length()));
-            response.getBody().setBody(HTTPEncodingUtil.encodeText(content));
+            response.getHeaders().add("Content-Length", String.valueOf(content.length));
+            response.getBody().setBody(content);
             return response;
-        } catch (IOException | IllegalFormatException | HTTPResponseFormatException e) {
+        } catch (Exception e) {
             return handleInternalServerError();
         }
     }
 
     private HTTPResponse handleMovedPermanently(String path) {
-        // TODO
-        HTTPResponse response = new HTTPResponse();
+        return handleRedirect(301, path);
+    }
+
+    private HTTPResponse handleFound(String location) {
+        return handleRedirect(302, location);
+    }
 
+    private HTTPResponse handleRedirect(int statusCode, String location) {
+        String key = statusCode + location;
+        HTTPResponse cached = redirectCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        HTTPResponse response = new HTTPResponse();
         try {
             response.getStatusLine().setVersion(HTTPVersion.getDefaultVersion());
-            response.getStatusLine().setStatusCode(301);
-            response.getHeaders().add("Location", path);
+            response.getStatusLine().setStatusCode(statusCode);
+            response.getHeaders().add("Location", location);
             response.getHeaders().add("Content-Length", "0");
+        } catch (HTTPResponseFormatException e) {
+            return handleInternalServerError();
+        }
+        response.freeze();
+        if (redirectCache.size() < MAX_CACHED_REDIRECTS) {
+            redirectCache.put(key, response);
+        }
+        return response;
+    }
+
+    private HTTPResponse handleJson(int statusCode, String message) {
+        Map<String, String> content = new LinkedHashMap<>();
+        content.put("message", message);
+        return handleJson(statusCode, content);
+    }
+
+    private HTTPResponse handleJson(int statusCode, Map<String, String> content) {
+        HTTPResponse response = new HTTPResponse();
+        try {
+            byte[] body = HTTPEncodingUtil.encodeText(toJson(content));
+            response.getStatusLine().setVersion(HTTPVersion.getDefaultVersion());
+            response.getStatusLine().setStatusCode(statusCode);
+            response.getHeaders().add("Content-Type", typeMap.get("json"));
+            response.getHeaders().add("Content-Length", String.valueOf(body.length));
+            // 包含会话等用户相关的内容，不允许缓存
+            response.getHeaders().add("Cache-Control", "no-store");
+            response.getBody().setBody(body);
             return response;
         } catch (HTTPResponseFormatException e) {
             return handleInternalServerError();
         }
     }
 
-    private HTTPResponse handleFound(String location) {
+    /**
+     * 由模板文件生成冻结的错误响应，序列化结果在请求间共享
+     */
+    private static HTTPResponse buildErrorResponse(int statusCode, byte[] content) throws HTTPResponseFormatException {
         HTTPResponse response = new HTTPResponse();
+        response.getStatusLine().setVersion(HTTPVersion.getDefaultVersion());
+        response.getStatusLine().setStatusCode(statusCode);
+        response.getHeaders().add("Content-Type", typeMap.get("txt"));
+        response.getHeaders().add("Content-Length", String.valueOf(content.length));
+        response.getBody().setBody(content);
+        return response.freeze();
+    }
+
+    /**
+     * 条件请求：有If-None-Match时按ETag比较，否则按If-Modified-Since的日期比较(精确到秒)
+     * 满足条件时回复304，消息体不会被发送，大文件也不会被打开
+     */
+    private HTTPResponse checkNotModified(HTTPRequest request, HTTPResponse response, long modifiedTime) {
+        String ifNoneMatch = request.getHeaders().getIgnoreCase("If-None-Match");
+        boolean notModified;
+        if (ifNoneMatch != null) {
+            notModified = ETagUtil.matches(ifNoneMatch, response.getHeaders().get("ETag"));
+        } else {
+            String ifModifiedSince = request.getHeaders().getIgnoreCase("If-Modified-Since");
+            long since = ifModifiedSince == null ? -1 : FileUtil.parseTimestamp(ifModifiedSince);
+            notModified = since >= 0 && modifiedTime / 1000 <= since / 1000;
+        }
+        return notModified ? handleNotModified(response) : response;
+    }
+
+    /**
+     * 处理Range请求：单个区间回复206，多个区间回复multipart/byteranges，都只发送请求的部分
+     * 已压缩的响应不支持Range；If-Range与当前版本不一致时返回完整内容
+     */
+    private HTTPResponse checkRange(HTTPRequest request, HTTPResponse response, ByteBuffer mapped, Runnable onMappingFault)
+            throws HTTPResponseFormatException {
+        if (response.getHeaders().contains("Content-Encoding")) return response;
+        response.getHeaders().add("Accept-Ranges", "bytes");
+        String rangeHeader = request.getHeaders().getIgnoreCase("Range");
+        if (rangeHeader == null || !ifRangeMatches(request, response)) return response;
 
+        HTTPResponse.HTTPResponseBody body = response.getBody();
+        long size = body.getLength();
+        List<ByteRange> ranges = ByteRange.parse(rangeHeader, size);
+        if (ranges == null) return response;
+        if (ranges.isEmpty()) return handleRangeNotSatisfiable(size);
+
+        // 内存中的内容和映射直接引用区间，文件通过transferTo只发送区间
+        Function<ByteRange, TCPPayload> region;
+        if (mapped != null) {
+            region = range -> TCPPayload.of(mapped.slice((int) range.getStart(), (int) range.length()), onMappingFault);
+        } else if (body.isFile()) {
+            Path file = body.getFile();
+            region = range -> TCPPayload.ofFile(file, range.getStart(), range.length());
+        } else {
+            byte[] bytes = body.getBytes();
+            region = range -> TCPPayload.of(bytes, (int) range.getStart(), (int) range.length());
+        }
+
+        HTTPResponse partial = new HTTPResponse();
+        partial.getStatusLine().setVersion(HTTPVersion.getDefaultVersion());
+        partial.getStatusLine().setStatusCode(206);
+        for (String name : PARTIAL_CONTENT_FIELDS) {
+            String value = response.getHeaders().get(name);
+            if (value != null) {
+                partial.getHeaders().add(name, value);
+            }
+        }
+
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            partial.getHeaders().add("Content-Type", response.getHeaders().get("Content-Type"));
+            partial.getHeaders().add("Content-Range", range.toContentRange(size));
+            partial.getHeaders().add("Content-Length", String.valueOf(range.length()));
+            partial.getBody().setPayload(() -> region.apply(range), range.length());
+            return partial;
+        }
+
+        // 每个区间前是分隔行和该区间的头部，最后是结束分隔行
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        byte[][] partHeads = new byte[ranges.size()][];
+        long length = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            partHeads[i] = HTTPEncodingUtil.encodeText((i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n"
+                    + "Content-Type: " + response.getHeaders().get("Content-Type") + "\r\n"
+                    + "Content-Range: " + ranges.get(i).toContentRange(size) + "\r\n\r\n");
+            length += partHeads[i].length + ranges.get(i).length();
+        }
+        byte[] closing = HTTPEncodingUtil.encodeText("\r\n--" + boundary + "--\r\n");
+        length += closing.length;
+
+        partial.getHeaders().add("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        partial.getHeaders().add("Content-Length", String.valueOf(length));
+        partial.getBody().setPayload(() -> {
+            TCPPayload[] parts = new TCPPayload[ranges.size() * 2 + 1];
+            for (int i = 0; i < ranges.size(); i++) {
+                parts[i * 2] = TCPPayload.of(partHeads[i]);
+                parts[i * 2 + 1] = region.apply(ranges.get(i));
+            }
+            parts[parts.length - 1] = TCPPayload.of(closing);
+            return TCPPayload.concat(parts);
+        }, length);
+        return partial;
+    }
+
+    /**
+     * If-Range为ETag时按强比较，为日期时必须与Last-Modified相同；没有If-Range时总是满足
+     */
+    private static boolean ifRangeMatches(HTTPRequest request, HTTPResponse response) {
+        String ifRange = request.getHeaders().getIgnoreCase("If-Range");
+        if (ifRange == null) return true;
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("W/")) return false;
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(response.getHeaders().get("ETag"));
+        }
+        String lastModified = response.getHeaders().get("Last-Modified");
+        long date = FileUtil.parseTimestamp(ifRange);
+        return lastModified != null && date != -1 && date == FileUtil.parseTimestamp(lastModified);
+    }
+
+    private HTTPResponse handleRangeNotSatisfiable(long size) {
+        HTTPResponse response = new HTTPResponse();
         try {
             response.getStatusLine().setVersion(HTTPVersion.getDefaultVersion());
-            response.getStatusLine().setStatusCode(302);
-            response.getHeaders().add("Location", location);
+            response.getStatusLine().setStatusCode(416);
+            response.getHeaders().add("Content-Range", "bytes */" + size);
             response.getHeaders().add("Content-Length", "0");
             return response;
         } catch (HTTPResponseFormatException e) {
@@ -262,14 +923,21 @@ public class HTTPServer extends TCPServer {
         }
     }
 
-    private HTTPResponse handleNotModified(HTTPRequest request) {
+    /**
+     * 304响应带上完整响应中的验证器和缓存相关字段
+     */
+    private HTTPResponse handleNotModified(HTTPResponse full) {
         HTTPResponse response = new HTTPResponse();
 
         try {
             response.getStatusLine().setVersion(HTTPVersion.getDefaultVersion());
             response.getStatusLine().setStatusCode(304);
-            response.getHeaders().add("Last-Modified", request.getHeaders().get("If-Modified-Since"));
-            response.getHeaders().add("Cache-Control", "no-cache");
+            for (String name : NOT_MODIFIED_FIELDS) {
+                String value = full.getHeaders().get(name);
+                if (value != null) {
+                    response.getHeaders().add(name, value);
+                }
+            }
             return response;
         } catch (HTTPResponseFormatException e) {
             return handleInternalServerError();
@@ -0,0 +1,44 @@
+package HTTP.server;
+
+import HTTP.message.HTTPRequest;
+import HTTP.message.HTTPResponse;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * 路由对应的处理函数，同步处理函数直接返回响应，异步处理函数返回CompletableFuture
+ * 异步处理函数不占用连接所在的线程，响应生成后连接继续发送
+ */
+class RouteHandler {
+    private final Function<HTTPRequest, HTTPResponse> handler;
+    private final Function<HTTPRequest, CompletableFuture<HTTPResponse>> asyncHandler;
+
+    private RouteHandler(Function<HTTPRequest, HTTPResponse> handler,
+                         Function<HTTPRequest, CompletableFuture<HTTPResponse>> asyncHandler) {
+        this.handler = handler;
+        this.asyncHandler = asyncHandler;
+    }
+
+    static RouteHandler of(Function<HTTPRequest, HTTPResponse> handler) {
+        if (handler == null) throw new IllegalArgumentException("Handler cannot be null");
+        return new RouteHandler(handler, null);
+    }
+
+    static RouteHandler async(Function<HTTPRequest, CompletableFuture<HTTPResponse>> asyncHandler) {
+        if (asyncHandler == null) throw new IllegalArgumentException("Handler cannot be null");
+        return new RouteHandler(null, asyncHandler);
+    }
+
+    boolean isAsync() {
+        return asyncHandler != null;
+    }
+
+    HTTPResponse handle(HTTPRequest request) {
+        return handler.apply(request);
+    }
+
+    CompletableFuture<HTTPResponse> handleAsync(HTTPRequest request) {
+        return asyncHandler.apply(request);
+    }
+}
@@ -0,0 +1,90 @@
+package HTTP.server.cache;
+
+import HTTP.rule.ContentEncoding;
+import HTTP.utils.ETagUtil;
+
+import java.nio.file.Path;
+
+/**
+ * 缓存的文件内容及预先计算好的响应头字段
+ */
+public class CachedContent {
+    private final byte[] content;
+    private final String contentType;
+    private final String contentLength;
+    private final String lastModified;
+    private final long modifiedTime;
+    private final Path path;
+    // 原内容和各编码内容的强ETag，加载时计算一次
+    private final String etag;
+    private final String[] encodedETags = new String[ContentEncoding.values().length];
+    // 各编码的内容，第一次请求时生成，由StaticContentCache加锁访问
+    private final byte[][] encoded = new byte[ContentEncoding.values().length][];
+
+    CachedContent(Path path, byte[] content, String contentType, String lastModified, long modifiedTime) {
+        this.path = path;
+        this.content = content;
+        this.contentType = contentType;
+        this.contentLength = String.valueOf(content.length);
+        this.lastModified = lastModified;
+        this.modifiedTime = modifiedTime;
+        this.etag = ETagUtil.fromContent(content);
+        for (ContentEncoding encoding : ContentEncoding.values()) {
+            encodedETags[encoding.ordinal()] = ETagUtil.withEncoding(etag, encoding.getToken());
+        }
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getContentLength() {
+        return contentLength;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getModifiedTime() {
+        return modifiedTime;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * @param encoding 为null时返回原内容的ETag
+     */
+    public String getETag(ContentEncoding encoding) {
+        return encoding == null ? etag : encodedETags[encoding.ordinal()];
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    byte[] getEncoded(ContentEncoding encoding) {
+        return encoded[encoding.ordinal()];
+    }
+
+    void setEncoded(ContentEncoding encoding, byte[] bytes) {
+        encoded[encoding.ordinal()] = bytes;
+    }
+
+    /**
+     * 占用的字节数，包括已生成的编码内容
+     */
+    public int size() {
+        int size = content.length;
+        for (byte[] bytes : encoded) {
+            if (bytes != null && bytes != content) size += bytes.length;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,56 @@
+package HTTP.server.cache;
+
+import java.nio.file.Path;
+
+/**
+ * 文件或目录的元数据，不存在的路径也有对应的实例，用于缓存404
+ */
+public class FileMetadata {
+    private final Path path;
+    private final boolean exists;
+    private final boolean directory;
+    private final long length;
+    private final long modifiedTime;
+    // 目录列表的编码结果，只有目录才有，条目过多时为null
+    private final byte[] listing;
+
+    FileMetadata(Path path, boolean exists, boolean directory, long length, long modifiedTime, byte[] listing) {
+        this.path = path;
+        this.exists = exists;
+        this.directory = directory;
+        this.length = length;
+        this.modifiedTime = modifiedTime;
+        this.listing = listing;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public boolean exists() {
+        return exists;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public boolean isFile() {
+        return exists && !directory;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getModifiedTime() {
+        return modifiedTime;
+    }
+
+    /**
+     * @return 预先编码的目录列表，不是目录或条目过多时返回null，由调用方逐块列出
+     */
+    public byte[] getListing() {
+        return listing;
+    }
+}
@@ -0,0 +1,270 @@
+package HTTP.server.cache;
+
+import HTTP.utils.HTTPEncodingUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 根目录下文件和目录的元数据缓存(是否存在、类型、长度、修改时间、目录列表)
+ * 通过WatchService监视根目录下的所有目录，收到变更事件时使对应的条目失效，命中时不访问文件系统
+ * 无法创建WatchService或尚未start时不缓存，每次都从文件系统读取
+ */
+public class FileMetadataCache implements Closeable {
+    private static final int DEFAULT_MAX_ENTRIES = 16 * 1024;
+    // 目录列表超过该长度时不预先编码，由调用方逐块列出
+    private static final int MAX_LISTING_BYTES = 64 * 1024;
+
+    private final Path root;
+    private final int maxEntries;
+    private final Map<Path, FileMetadata> entries = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    // 每次失效前递增，加载期间发生过失效的结果不保留
+    private final AtomicLong generation = new AtomicLong();
+    private volatile WatchService watchService;
+    private Thread watcher;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public FileMetadataCache(String root) {
+        this(root, DEFAULT_MAX_ENTRIES);
+    }
+
+    public FileMetadataCache(String root, int maxEntries) {
+        this.root = Path.of(root).toAbsolutePath().normalize();
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * 注册根目录下的所有目录并启动监视线程
+     */
+    public synchronized void start() {
+        if (watchService != null) return;
+        try {
+            WatchService service = root.getFileSystem().newWatchService();
+            watchService = service;
+            registerTree(root);
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+            return;
+        }
+        watcher = Thread.ofPlatform().daemon().name("file-metadata-watcher").start(this::watch);
+    }
+
+    @Override
+    public synchronized void close() {
+        WatchService service = watchService;
+        watchService = null;
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (watcher != null) {
+            watcher.interrupt();
+            watcher = null;
+        }
+        watchedDirectories.clear();
+        entries.clear();
+    }
+
+    /**
+     * 获取路径的元数据，路径不存在时返回exists()为false的实例
+     * 规范化之后不在根目录下的路径(例如包含..)一律视为不存在
+     */
+    public FileMetadata get(String path) {
+        Path key = Path.of(path).toAbsolutePath().normalize();
+        if (!key.startsWith(root)) {
+            return new FileMetadata(key, false, false, 0, 0, null);
+        }
+        if (watchService == null) {
+            return load(key);
+        }
+
+        FileMetadata cached = entries.get(key);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+
+        long loadedGeneration = generation.get();
+        FileMetadata loaded = load(key);
+        // 大量不同的路径(例如扫描不存在的文件)时整体清空，避免无限增长
+        if (entries.size() >= maxEntries) {
+            entries.clear();
+        }
+        entries.put(key, loaded);
+        // 加载期间有条目失效时，加载的结果可能已经过期
+        if (generation.get() != loadedGeneration) {
+            entries.remove(key, loaded);
+        }
+        return loaded;
+    }
+
+    private FileMetadata load(Path path) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return new FileMetadata(path, false, false, 0, 0, null);
+        }
+        long modifiedTime = attributes.lastModifiedTime().toMillis();
+        if (!attributes.isDirectory()) {
+            return new FileMetadata(path, true, false, attributes.size(), modifiedTime, null);
+        }
+        return new FileMetadata(path, true, true, 0, modifiedTime, encodeListing(path));
+    }
+
+    /**
+     * 与FileUtil.listFilesInChunks的格式相同，每行一个文件名
+     * @return 超过MAX_LISTING_BYTES或读取失败时返回null
+     */
+    private static byte[] encodeListing(Path directory) {
+        StringBuilder sb = new StringBuilder();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path entry : stream) {
+                sb.append(entry.getFileName()).append("\n");
+                if (sb.length() > MAX_LISTING_BYTES) return null;
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            return null;
+        }
+        return HTTPEncodingUtil.encodeText(sb.toString());
+    }
+
+    private void registerTree(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedDirectories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watch() {
+        WatchService service = watchService;
+        while (service != null) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = watchedDirectories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                    // 丢失了部分事件，无法确定哪些条目过期
+                    invalidateAll();
+                    continue;
+                }
+                Path child = directory.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+                    invalidate(child);
+                } else {
+                    // 新建或删除的可能是目录，其下缓存的条目(包括不存在的路径)都要失效
+                    invalidateTree(child);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                            && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                        try {
+                            registerTree(child);
+                        } catch (NoSuchFileException ignored) {
+                        } catch (ClosedWatchServiceException e) {
+                            return;
+                        } catch (FileSystemException e) {
+                            invalidateAll();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+                // 目录的修改时间和列表随之变化
+                invalidate(directory);
+            }
+            if (!key.reset()) {
+                // 目录已被删除或不可访问
+                watchedDirectories.remove(key);
+                if (directory != null) {
+                    invalidateTree(directory);
+                }
+            }
+        }
+    }
+
+    public void invalidate(Path path) {
+        generation.incrementAndGet();
+        entries.remove(path);
+        invalidations.increment();
+    }
+
+    private void invalidateTree(Path path) {
+        generation.incrementAndGet();
+        entries.keySet().removeIf(key -> key.startsWith(path));
+        invalidations.increment();
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        entries.clear();
+        invalidations.increment();
+    }
+
+    public boolean isWatching() {
+        return watchService != null;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("watching: %b, directories: %d, entries: %d, hits: %d, misses: %d, invalidations: %d",
+                isWatching(), watchedDirectories.size(), getEntryCount(), getHits(), getMisses(), getInvalidations());
+    }
+}
@@ -0,0 +1,175 @@
+package HTTP.server.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 超过StaticContentCache条目上限、但被频繁请求的中等大小文件，以内存映射的方式常驻
+ * 发送时把映射区间直接写入socket，不经过堆内存，也不需要每次打开文件
+ * 文件的修改时间或长度变化时重新映射；映射的总字节数有上限，按LRU顺序淘汰
+ * 被淘汰的映射在没有连接引用后由GC解除
+ * 映射后文件被截断时，访问超出部分会抛出InternalError(SIGBUS)，发送方应关闭连接并调用invalidate
+ */
+public class MappedFileCache {
+    private static final long DEFAULT_MAX_MAPPED_BYTES = 256L * 1024 * 1024;
+    private static final long DEFAULT_MAX_FILE_BYTES = 64L * 1024 * 1024;
+    // 请求次数达到该值的文件才会被映射，只请求一次的文件直接发送
+    private static final int HOT_THRESHOLD = 2;
+    private static final int MAX_TRACKED_FILES = 1024;
+
+    private final long maxMappedBytes;
+    private final long maxFileBytes;
+    private final LinkedHashMap<Path, MappedFile> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    // 尚未映射的文件的请求次数，只记录最近的MAX_TRACKED_FILES个
+    private final LinkedHashMap<Path, Integer> requestCounts = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Integer> eldest) {
+            return size() > MAX_TRACKED_FILES;
+        }
+    };
+    private long mappedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static class MappedFile {
+        private final ByteBuffer buffer;
+        private final long modifiedTime;
+        private final long length;
+
+        MappedFile(ByteBuffer buffer, long modifiedTime, long length) {
+            this.buffer = buffer;
+            this.modifiedTime = modifiedTime;
+            this.length = length;
+        }
+    }
+
+    public MappedFileCache() {
+        this(DEFAULT_MAX_MAPPED_BYTES, DEFAULT_MAX_FILE_BYTES);
+    }
+
+    public MappedFileCache(long maxMappedBytes, long maxFileBytes) {
+        this.maxMappedBytes = maxMappedBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 获取文件的只读映射，调用方应通过duplicate或slice使用，不要修改其位置
+     * @return 文件还不够热、过大或已不存在时返回null，由调用方直接发送文件
+     */
+    public ByteBuffer get(File file) throws IOException {
+        return get(file.toPath().toAbsolutePath().normalize(), file.lastModified(), file.length());
+    }
+
+    /**
+     * 使用已知的元数据判断映射是否过期，不再访问文件系统
+     */
+    public ByteBuffer get(FileMetadata metadata) throws IOException {
+        return get(metadata.getPath(), metadata.isFile() ? metadata.getModifiedTime() : 0, metadata.getLength());
+    }
+
+    private ByteBuffer get(Path key, long modifiedTime, long length) throws IOException {
+        if (modifiedTime == 0 || length == 0 || length > maxFileBytes || length > maxMappedBytes) {
+            invalidate(key);
+            return null;
+        }
+
+        synchronized (this) {
+            MappedFile mapped = mappings.get(key);
+            if (mapped != null && mapped.modifiedTime == modifiedTime && mapped.length == length) {
+                hits.increment();
+                return mapped.buffer;
+            }
+            misses.increment();
+            if (mapped == null) {
+                int count = requestCounts.merge(key, 1, Integer::sum);
+                if (count < HOT_THRESHOLD) return null;
+            }
+        }
+
+        // 在锁外映射，并发时可能重复映射，后完成的覆盖先完成的
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(key, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        put(key, new MappedFile(buffer, modifiedTime, length));
+        return buffer;
+    }
+
+    public synchronized void invalidate(Path key) {
+        MappedFile removed = mappings.remove(key);
+        if (removed != null) {
+            mappedBytes -= removed.length;
+        }
+        requestCounts.remove(key);
+    }
+
+    /**
+     * 只在当前映射仍是buffer时移除，已经重新映射的不受影响
+     */
+    public synchronized void invalidate(Path key, ByteBuffer buffer) {
+        MappedFile mapped = mappings.get(key);
+        if (mapped != null && mapped.buffer == buffer) {
+            invalidate(key);
+        }
+    }
+
+    public synchronized void clear() {
+        mappings.clear();
+        requestCounts.clear();
+        mappedBytes = 0;
+    }
+
+    private synchronized void put(Path key, MappedFile mapped) {
+        requestCounts.remove(key);
+        MappedFile previous = mappings.put(key, mapped);
+        if (previous != null) {
+            mappedBytes -= previous.length;
+        }
+        mappedBytes += mapped.length;
+
+        Iterator<Map.Entry<Path, MappedFile>> iterator = mappings.entrySet().iterator();
+        while (mappedBytes > maxMappedBytes && iterator.hasNext()) {
+            Map.Entry<Path, MappedFile> eldest = iterator.next();
+            if (eldest.getValue() == mapped) continue;
+            mappedBytes -= eldest.getValue().length;
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    public synchronized int getMappingCount() {
+        return mappings.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("mappings: %d, mapped bytes: %d/%d, hits: %d, misses: %d, evictions: %d",
+                getMappingCount(), getMappedBytes(), maxMappedBytes, getHits(), getMisses(), getEvictions());
+    }
+}
@@ -0,0 +1,207 @@
+package HTTP.server.cache;
+
+import HTTP.rule.ContentEncoding;
+import HTTP.utils.FileUtil;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 静态文件内容缓存，按路径缓存文件字节和响应头字段，以及压缩后的内容
+ * 按LRU顺序淘汰，缓存的总字节数不超过预算；文件修改时间变化时重新读取
+ */
+public class StaticContentCache {
+    private static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+    private static final long DEFAULT_MAX_ENTRY_BYTES = 1024L * 1024;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final Function<String, String> typeResolver;
+    // accessOrder为true时迭代顺序就是LRU顺序
+    private final LinkedHashMap<Path, CachedContent> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytesHeld;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param typeResolver 根据文件扩展名得到Content-Type
+     */
+    public StaticContentCache(Function<String, String> typeResolver) {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRY_BYTES, typeResolver);
+    }
+
+    public StaticContentCache(long maxBytes, long maxEntryBytes, Function<String, String> typeResolver) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.typeResolver = typeResolver;
+    }
+
+    /**
+     * 获取文件内容，未命中或文件已修改时从磁盘读取
+     * @return 文件超过单个条目的大小上限时返回null，由调用方直接发送文件
+     * @throws FileNotFoundException 文件不存在或是目录
+     */
+    public CachedContent get(String path) throws IOException {
+        File file = new File(path);
+        return get(path, file.lastModified(), file.length(), file.isDirectory());
+    }
+
+    /**
+     * 使用已知的元数据判断缓存是否过期，不再访问文件系统
+     */
+    public CachedContent get(FileMetadata metadata) throws IOException {
+        return get(metadata.getPath().toString(), metadata.exists() ? metadata.getModifiedTime() : 0,
+                metadata.getLength(), metadata.isDirectory());
+    }
+
+    private CachedContent get(String path, long modifiedTime, long length, boolean directory) throws IOException {
+        Path key = Path.of(path).toAbsolutePath().normalize();
+        if (modifiedTime == 0 || directory) {
+            invalidate(key);
+            throw new FileNotFoundException(path);
+        }
+
+        synchronized (this) {
+            CachedContent cached = entries.get(key);
+            if (cached != null && cached.getModifiedTime() == modifiedTime) {
+                hits.increment();
+                return cached;
+            }
+        }
+        misses.increment();
+
+        if (length > maxEntryBytes) {
+            invalidate(key);
+            return null;
+        }
+
+        // 在锁外读文件，并发未命中时可能重复读取，但不会阻塞其他命中
+        byte[] content = FileUtil.read(path);
+        CachedContent loaded = new CachedContent(key, content,
+                typeResolver.apply(FileUtil.getExtension(path)),
+                FileUtil.formatTimestamp(modifiedTime),
+                modifiedTime);
+        put(key, loaded);
+        return loaded;
+    }
+
+    /**
+     * 获取按encoding编码后的内容，同一版本的文件只压缩一次
+     * gzip优先使用同目录下不早于原文件的.gz预压缩文件
+     * @return 压缩后不比原内容小时返回原内容，调用方应按未压缩发送
+     */
+    public byte[] getEncoded(CachedContent content, ContentEncoding encoding) throws IOException {
+        synchronized (this) {
+            byte[] encoded = content.getEncoded(encoding);
+            if (encoded != null) return encoded;
+        }
+
+        // 在锁外压缩，并发时可能重复压缩，结果相同
+        byte[] encoded = null;
+        if (encoding == ContentEncoding.GZIP) {
+            File precompressed = FileUtil.findPrecompressed(content.getPath().toString(), content.getModifiedTime());
+            if (precompressed != null) {
+                encoded = FileUtil.read(precompressed.getPath());
+            }
+        }
+        if (encoded == null) {
+            encoded = encoding.encode(content.getContent());
+        }
+        if (encoded.length >= content.getContent().length) {
+            encoded = content.getContent();
+        }
+
+        synchronized (this) {
+            if (content.getEncoded(encoding) == null) {
+                int previousSize = content.size();
+                content.setEncoded(encoding, encoded);
+                // 条目已被淘汰或替换时不计入预算
+                if (entries.get(content.getPath()) == content) {
+                    bytesHeld += content.size() - previousSize;
+                    evict(content);
+                }
+            }
+            return content.getEncoded(encoding);
+        }
+    }
+
+    public synchronized void invalidate(Path key) {
+        CachedContent removed = entries.remove(key);
+        if (removed != null) {
+            bytesHeld -= removed.size();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytesHeld = 0;
+    }
+
+    private synchronized void put(Path key, CachedContent content) {
+        CachedContent previous = entries.put(key, content);
+        if (previous != null) {
+            bytesHeld -= previous.size();
+        }
+        bytesHeld += content.size();
+        evict(content);
+    }
+
+    /**
+     * 按LRU顺序淘汰，直到总字节数不超过预算，keep不会被淘汰
+     */
+    private void evict(CachedContent keep) {
+        Iterator<Map.Entry<Path, CachedContent>> iterator = entries.entrySet().iterator();
+        while (bytesHeld > maxBytes && iterator.hasNext()) {
+            Map.Entry<Path, CachedContent> eldest = iterator.next();
+            if (eldest.getValue() == keep) continue;
+            bytesHeld -= eldest.getValue().size();
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public double getHitRatio() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    public synchronized long getBytesHeld() {
+        return bytesHeld;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("entries: %d, bytes held: %d/%d, hits: %d, misses: %d, hit ratio: %.2f%%, evictions: %d",
+                getEntryCount(), getBytesHeld(), maxBytes, getHits(), getMisses(), getHitRatio() * 100, getEvictions());
+    }
+}
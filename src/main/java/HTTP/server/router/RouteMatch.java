@@ -0,0 +1,91 @@
+package HTTP.server.router;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 路由匹配结果，参数只记录在路径中的位置，取值时才截取
+ */
+public class RouteMatch<H> {
+    private String path;
+    private final int[] parameterBounds;
+    private int wildcardStart;
+    private int wildcardEnd;
+    Router.Route<H> route;
+
+    RouteMatch(int maxParameters) {
+        parameterBounds = new int[maxParameters * 2];
+    }
+
+    void reset(String path) {
+        this.path = path;
+        this.route = null;
+        wildcardStart = wildcardEnd = -1;
+    }
+
+    void setParameter(int index, int start, int end) {
+        parameterBounds[index * 2] = start;
+        parameterBounds[index * 2 + 1] = end;
+    }
+
+    void setWildcard(int start, int end) {
+        wildcardStart = start;
+        wildcardEnd = end;
+    }
+
+    public H getHandler() {
+        return route.handler;
+    }
+
+    public boolean isRedirect() {
+        return route.redirectStatus != 0;
+    }
+
+    public int getRedirectStatus() {
+        return route.redirectStatus;
+    }
+
+    /**
+     * 重定向的目标，其中的"*"替换为通配符匹配到的路径
+     */
+    public String getRedirectLocation() {
+        String location = route.redirectLocation;
+        int star = location.indexOf('*');
+        if (star == -1) return location;
+        return location.substring(0, star) + getWildcard() + location.substring(star + 1);
+    }
+
+    /**
+     * @return 路由中没有该参数时返回null
+     */
+    public String getParameter(String name) {
+        String[] names = route.parameterNames;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return path.substring(parameterBounds[i * 2], parameterBounds[i * 2 + 1]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 复制全部参数，返回的Map不随当前线程复用的匹配结果变化
+     */
+    public Map<String, String> getParameters() {
+        String[] names = route.parameterNames;
+        if (names.length == 0) return Map.of();
+        Map<String, String> parameters = new HashMap<>(names.length * 2);
+        for (int i = 0; i < names.length; i++) {
+            parameters.put(names[i], path.substring(parameterBounds[i * 2], parameterBounds[i * 2 + 1]));
+        }
+        return Collections.unmodifiableMap(parameters);
+    }
+
+    /**
+     * @return 通配符匹配到的剩余路径，不含开头的'/'；路由中没有通配符时返回null
+     */
+    public String getWildcard() {
+        return wildcardStart == -1 ? null : path.substring(wildcardStart, wildcardEnd);
+    }
+}
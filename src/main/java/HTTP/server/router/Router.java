@@ -0,0 +1,201 @@
+package HTTP.server.router;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按路径段组织的前缀树路由
+ * 模式中的段可以是普通文本、":name"形式的参数，或者作为最后一段的"*"通配符(匹配剩余的全部路径)
+ * 匹配优先级：普通文本 > 参数 > 通配符，匹配过程不分配对象
+ */
+public class Router<H> {
+    private static final int MAX_PARAMETERS = 8;
+
+    private final Node<H> root = new Node<>();
+    private final ThreadLocal<RouteMatch<H>> matches = ThreadLocal.withInitial(() -> new RouteMatch<>(MAX_PARAMETERS));
+
+    static class Route<H> {
+        final H handler;
+        final int redirectStatus;
+        final String redirectLocation;
+        final String[] parameterNames;
+
+        Route(H handler, int redirectStatus, String redirectLocation, String[] parameterNames) {
+            this.handler = handler;
+            this.redirectStatus = redirectStatus;
+            this.redirectLocation = redirectLocation;
+            this.parameterNames = parameterNames;
+        }
+    }
+
+    /**
+     * 注册路由，相同的模式后注册的覆盖先注册的
+     */
+    public void add(String pattern, H handler) {
+        insert(pattern, handler, 0, null);
+    }
+
+    /**
+     * 注册重定向，location中的"*"会被替换为通配符匹配到的路径
+     * @param permanent true时为301，否则为302
+     */
+    public void addRedirect(String pattern, String location, boolean permanent) {
+        insert(pattern, null, permanent ? 301 : 302, location);
+    }
+
+    /**
+     * 匹配路径，查询字符串会被忽略
+     * 返回的对象由当前线程复用，下一次调用match后失效
+     * @return 没有匹配的路由时返回null
+     */
+    public RouteMatch<H> match(String path) {
+        if (path.isEmpty() || path.charAt(0) != '/') return null;
+        int end = path.indexOf('?');
+        if (end == -1) end = path.length();
+
+        RouteMatch<H> match = matches.get();
+        match.reset(path);
+        Route<H> route = end == 1 ? root.route : match(root, path, 1, end, match, 0);
+        if (route == null) return null;
+        match.route = route;
+        return match;
+    }
+
+    private Route<H> match(Node<H> node, String path, int start, int end, RouteMatch<H> match, int parameterCount) {
+        int segmentEnd = path.indexOf('/', start);
+        if (segmentEnd == -1 || segmentEnd > end) segmentEnd = end;
+        boolean last = segmentEnd == end;
+
+        Node<H> child = node.staticChildren.get(path, start, segmentEnd);
+        if (child != null) {
+            Route<H> route = last ? child.route : match(child, path, segmentEnd + 1, end, match, parameterCount);
+            if (route != null) return route;
+        }
+
+        if (node.parameterChild != null && segmentEnd > start && parameterCount < MAX_PARAMETERS) {
+            match.setParameter(parameterCount, start, segmentEnd);
+            child = node.parameterChild;
+            Route<H> route = last ? child.route : match(child, path, segmentEnd + 1, end, match, parameterCount + 1);
+            if (route != null) return route;
+        }
+
+        if (node.wildcardRoute != null) {
+            match.setWildcard(start, end);
+            return node.wildcardRoute;
+        }
+        return null;
+    }
+
+    private void insert(String pattern, H handler, int redirectStatus, String redirectLocation) {
+        if (pattern.isEmpty() || pattern.charAt(0) != '/') {
+            throw new IllegalArgumentException("Invalid route pattern: " + pattern);
+        }
+        List<String> parameterNames = new ArrayList<>();
+        Node<H> node = root;
+        boolean wildcard = false;
+        if (pattern.length() > 1) {
+            String[] segments = pattern.substring(1).split("/", -1);
+            for (int i = 0; i < segments.length; i++) {
+                String segment = segments[i];
+                if (segment.equals("*")) {
+                    if (i != segments.length - 1) {
+                        throw new IllegalArgumentException("Wildcard must be the last segment: " + pattern);
+                    }
+                    wildcard = true;
+                } else if (segment.startsWith(":") && segment.length() > 1) {
+                    if (parameterNames.size() == MAX_PARAMETERS) {
+                        throw new IllegalArgumentException("Too many parameters: " + pattern);
+                    }
+                    parameterNames.add(segment.substring(1));
+                    if (node.parameterChild == null) {
+                        node.parameterChild = new Node<>();
+                    }
+                    node = node.parameterChild;
+                } else {
+                    node = node.staticChildren.getOrCreate(segment);
+                }
+            }
+        }
+
+        Route<H> route = new Route<>(handler, redirectStatus, redirectLocation, parameterNames.toArray(new String[0]));
+        if (wildcard) {
+            node.wildcardRoute = route;
+        } else {
+            node.route = route;
+        }
+    }
+
+    private static class Node<H> {
+        final SegmentTable<H> staticChildren = new SegmentTable<>();
+        Node<H> parameterChild;
+        Route<H> route;
+        Route<H> wildcardRoute;
+    }
+
+    /**
+     * 子节点的开放寻址哈希表，直接用路径中的一段计算哈希和比较，不需要截取子串
+     */
+    private static class SegmentTable<H> {
+        private String[] keys = new String[4];
+        private Node<H>[] values = newArray(4);
+        private int size;
+
+        Node<H> get(String path, int start, int end) {
+            if (size == 0) return null;
+            int mask = keys.length - 1;
+            int length = end - start;
+            for (int i = hash(path, start, end) & mask; keys[i] != null; i = (i + 1) & mask) {
+                String key = keys[i];
+                if (key.length() == length && key.regionMatches(0, path, start, length)) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        Node<H> getOrCreate(String segment) {
+            Node<H> existing = get(segment, 0, segment.length());
+            if (existing != null) return existing;
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+            }
+            Node<H> node = new Node<>();
+            put(segment, node);
+            size++;
+            return node;
+        }
+
+        private void put(String key, Node<H> node) {
+            int mask = keys.length - 1;
+            int i = hash(key, 0, key.length()) & mask;
+            while (keys[i] != null) i = (i + 1) & mask;
+            keys[i] = key;
+            values[i] = node;
+        }
+
+        private void resize() {
+            String[] oldKeys = keys;
+            Node<H>[] oldValues = values;
+            keys = new String[oldKeys.length * 2];
+            values = newArray(oldKeys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <H> Node<H>[] newArray(int length) {
+            return (Node<H>[]) new Node<?>[length];
+        }
+
+        private static int hash(String s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + s.charAt(i);
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package HTTP.server.session;
+
+/**
+ * 登录会话，每次访问都会延长有效期
+ */
+public class Session {
+    private final String id;
+    private final String username;
+    private final long createdTime;
+    // 只在访问时写入，过期检查时读取，不需要加锁
+    private volatile long lastAccessedTime;
+    private volatile boolean invalidated;
+    // 在所属分片的时间轮中的条目，由分片的锁保护
+    TimingWheel.Entry timerEntry;
+
+    Session(String id, String username, long now) {
+        this.id = id;
+        this.username = username;
+        this.createdTime = now;
+        this.lastAccessedTime = now;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public long getCreatedTime() {
+        return createdTime;
+    }
+
+    public long getLastAccessedTime() {
+        return lastAccessedTime;
+    }
+
+    public boolean isValid() {
+        return !invalidated;
+    }
+
+    void touch(long now) {
+        // 同一毫秒内的重复访问不写入，减少缓存行失效
+        if (lastAccessedTime != now) {
+            lastAccessedTime = now;
+        }
+    }
+
+    void invalidate() {
+        invalidated = true;
+    }
+
+    long expiresAt(long timeToLive) {
+        return lastAccessedTime + timeToLive;
+    }
+}
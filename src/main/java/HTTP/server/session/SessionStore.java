@@ -0,0 +1,240 @@
+package HTTP.server.session;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 分片的会话存储，每个分片有独立的表、锁和时间轮
+ * 查找只读本分片的ConcurrentHashMap并更新会话的访问时间，不加锁，也不移动时间轮中的条目
+ * 时间轮到期时再按最后访问时间判断是否真的过期，未过期的重新放入(滑动过期)
+ * 清理在创建会话时进行，查找时每个分片每格最多尝试一次，拿不到锁就跳过
+ */
+public class SessionStore {
+    private static final long DEFAULT_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(30);
+    private static final int DEFAULT_MAX_SESSIONS = 100_000;
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SIZE = 64;
+    private static final int WHEEL_LEVELS = 4;
+    private static final int ID_BYTES = 16;
+
+    // SecureRandom内部有锁，每个线程使用自己的实例
+    private static final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(SecureRandom::new);
+    private static final Base64.Encoder ID_ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private final long timeToLive;
+    private final int maxSessions;
+    private final Shard[] shards;
+    private final AtomicInteger sessionCount = new AtomicInteger();
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    private static class Shard {
+        final Map<String, Session> sessions = new ConcurrentHashMap<>();
+        final ReentrantLock lock = new ReentrantLock();
+        final TimingWheel<Session> wheel;
+        volatile long nextSweep;
+
+        Shard(long now) {
+            wheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SIZE, WHEEL_LEVELS, now);
+        }
+    }
+
+    public SessionStore() {
+        this(DEFAULT_TIME_TO_LIVE, DEFAULT_MAX_SESSIONS);
+    }
+
+    /**
+     * @param timeToLive 会话在最后一次访问后保持有效的时间(毫秒)
+     */
+    public SessionStore(long timeToLive, int maxSessions) {
+        if (timeToLive <= 0 || maxSessions <= 0) {
+            throw new IllegalArgumentException("timeToLive and maxSessions must be positive");
+        }
+        this.timeToLive = timeToLive;
+        this.maxSessions = maxSessions;
+        // 分片数取不小于核数4倍的2的幂，用哈希值的低位选择分片
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4) - 1) << 1;
+        long now = System.currentTimeMillis();
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(now);
+        }
+    }
+
+    /**
+     * 为用户创建新会话，会话数达到上限时先清理过期的会话，仍然不够则淘汰最早到期的会话
+     */
+    public Session create(String username) {
+        long now = System.currentTimeMillis();
+        if (sessionCount.incrementAndGet() > maxSessions) {
+            for (Shard shard : shards) {
+                shard.lock.lock();
+                try {
+                    sweep(shard, now);
+                } finally {
+                    shard.lock.unlock();
+                }
+            }
+            if (sessionCount.get() > maxSessions) {
+                evictOne();
+            }
+        }
+
+        Session session;
+        Shard shard;
+        do {
+            session = new Session(generateId(), username, now);
+            shard = shardFor(session.getId());
+        } while (shard.sessions.putIfAbsent(session.getId(), session) != null);
+
+        shard.lock.lock();
+        try {
+            sweep(shard, now);
+            session.timerEntry = shard.wheel.add(session, session.expiresAt(timeToLive));
+            // 放入时间轮之前已被注销，remove没有可移除的条目
+            if (!session.isValid()) {
+                shard.wheel.remove(session.timerEntry);
+                session.timerEntry = null;
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+        created.increment();
+        return session;
+    }
+
+    /**
+     * 查找会话并延长有效期
+     * @return 会话不存在、已过期或已注销时返回null
+     */
+    public Session get(String id) {
+        if (id == null) return null;
+        Shard shard = shardFor(id);
+        Session session = shard.sessions.get(id);
+        if (session == null) return null;
+
+        long now = System.currentTimeMillis();
+        if (now >= shard.nextSweep && shard.lock.tryLock()) {
+            try {
+                sweep(shard, now);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        if (session.expiresAt(timeToLive) <= now) {
+            // 时间轮还没有处理到，由查找方移除
+            if (remove(shard, session)) {
+                expired.increment();
+            }
+            return null;
+        }
+        if (!session.isValid()) return null;
+        session.touch(now);
+        return session;
+    }
+
+    /**
+     * 注销会话，同时从时间轮中移除
+     */
+    public void invalidate(String id) {
+        if (id == null) return;
+        Shard shard = shardFor(id);
+        Session session = shard.sessions.get(id);
+        if (session != null) {
+            remove(shard, session);
+        }
+    }
+
+    private boolean remove(Shard shard, Session session) {
+        session.invalidate();
+        // 时间轮中的条目一起移除，反复登录注销不会让时间轮随之增长
+        shard.lock.lock();
+        try {
+            shard.wheel.remove(session.timerEntry);
+            session.timerEntry = null;
+        } finally {
+            shard.lock.unlock();
+        }
+        if (shard.sessions.remove(session.getId(), session)) {
+            sessionCount.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 推进分片的时间轮，调用方持有分片的锁
+     */
+    private void sweep(Shard shard, long now) {
+        shard.nextSweep = now + TICK_MILLIS;
+        List<Session> due = new ArrayList<>();
+        shard.wheel.advance(now, due);
+        for (Session session : due) {
+            if (!session.isValid()) continue;
+            long deadline = session.expiresAt(timeToLive);
+            // 期间被访问过的会话重新放入，放入失败说明已经过期
+            session.timerEntry = deadline <= now ? null : shard.wheel.add(session, deadline);
+            if (session.timerEntry == null) {
+                if (remove(shard, session)) {
+                    expired.increment();
+                }
+            }
+        }
+    }
+
+    private void evictOne() {
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                Session session;
+                while ((session = shard.wheel.pollEarliest()) != null) {
+                    if (remove(shard, session)) {
+                        evicted.increment();
+                        return;
+                    }
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    private Shard shardFor(String id) {
+        int hash = id.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & (shards.length - 1)];
+    }
+
+    private static String generateId() {
+        byte[] bytes = new byte[ID_BYTES];
+        random.get().nextBytes(bytes);
+        return ID_ENCODER.encodeToString(bytes);
+    }
+
+    public int size() {
+        return sessionCount.get();
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("sessions: %d/%d, shards: %d, created: %d, expired: %d, evicted: %d",
+                size(), maxSessions, shards.length, created.sum(), expired.sum(), evicted.sum());
+    }
+}
@@ -0,0 +1,195 @@
+package HTTP.server.session;
+
+import java.util.List;
+
+/**
+ * 分层时间轮，加入、移除和到期都是O(1)，不需要按到期时间排序
+ * 第i层每格的跨度是tickMillis * wheelSize^i，高层的格子到期时把其中的条目重新放入低层
+ * 条目不会提前到期，最多推迟一格(tickMillis)；超出最高层范围的条目放在最高层最远的格子，到时再重新放入
+ * 不是线程安全的，由调用方加锁
+ */
+class TimingWheel<T> {
+    private final long tickMillis;
+    private final int wheelSize;
+    private final long[] ticks;
+    private final Slot[][] slots;
+    // 已经处理到的时间，是tickMillis的整数倍
+    private long currentTime;
+    private int size;
+
+    /**
+     * 时间轮中的条目，由add返回，可以用来提前移除
+     */
+    static class Entry {
+        final Object item;
+        // 实际放入格子的时间，是到期时间加一格，保证不会提前到期
+        final long time;
+        // 所在的格子，不在时间轮中时为null
+        private Slot slot;
+        private Entry prev;
+        private Entry next;
+
+        private Entry(Object item, long time) {
+            this.item = item;
+            this.time = time;
+        }
+    }
+
+    /**
+     * 格子中的条目组成双向链表，移除时不需要查找
+     */
+    private static class Slot {
+        private Entry head;
+
+        void add(Entry entry) {
+            entry.slot = this;
+            entry.prev = null;
+            entry.next = head;
+            if (head != null) {
+                head.prev = entry;
+            }
+            head = entry;
+        }
+
+        void remove(Entry entry) {
+            if (entry.prev != null) {
+                entry.prev.next = entry.next;
+            } else {
+                head = entry.next;
+            }
+            if (entry.next != null) {
+                entry.next.prev = entry.prev;
+            }
+            entry.slot = null;
+            entry.prev = entry.next = null;
+        }
+
+        /**
+         * 取出全部条目，处理期间重新放入的条目进入新的链表
+         */
+        Entry takeAll() {
+            Entry taken = head;
+            head = null;
+            return taken;
+        }
+    }
+
+    TimingWheel(long tickMillis, int wheelSize, int levels, long now) {
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.ticks = new long[levels];
+        this.slots = new Slot[levels][wheelSize];
+        long tick = tickMillis;
+        for (int level = 0; level < levels; level++) {
+            ticks[level] = tick;
+            tick *= wheelSize;
+            for (int slot = 0; slot < wheelSize; slot++) {
+                slots[level][slot] = new Slot();
+            }
+        }
+        this.currentTime = now - now % tickMillis;
+    }
+
+    /**
+     * @return 加入的条目；已经到期时返回null，不会加入
+     */
+    Entry add(T item, long deadline) {
+        Entry entry = new Entry(item, deadline + tickMillis);
+        return place(entry) ? entry : null;
+    }
+
+    /**
+     * 移除尚未到期的条目
+     * @return 条目已经到期或已被移除时返回false
+     */
+    boolean remove(Entry entry) {
+        if (entry == null || entry.slot == null) return false;
+        entry.slot.remove(entry);
+        size--;
+        return true;
+    }
+
+    private boolean place(Entry entry) {
+        if (entry.time < currentTime + tickMillis) return false;
+        int top = ticks.length - 1;
+        int level = 0;
+        while (level < top && entry.time >= start(level) + ticks[level] * wheelSize) {
+            level++;
+        }
+        // 超出最高层的范围时放在当前格子的前一格，即一圈后才会处理的格子
+        long time = Math.min(entry.time, start(level) + ticks[level] * (wheelSize - 1));
+        slots[level][slot(level, time)].add(entry);
+        size++;
+        return true;
+    }
+
+    /**
+     * 推进到now，到期的条目加入expired
+     */
+    void advance(long now, List<T> expired) {
+        if (size == 0) {
+            currentTime = Math.max(currentTime, now - now % tickMillis);
+            return;
+        }
+        while (currentTime + tickMillis <= now) {
+            currentTime += tickMillis;
+            // 从高层开始，重新放入的条目如果落在当前时间也能立即到期
+            for (int level = ticks.length - 1; level >= 0; level--) {
+                if (currentTime % ticks[level] != 0) continue;
+                Entry entry = slots[level][slot(level, currentTime)].takeAll();
+                while (entry != null) {
+                    Entry next = entry.next;
+                    entry.slot = null;
+                    entry.prev = entry.next = null;
+                    size--;
+                    if (!place(entry)) {
+                        expired.add(itemOf(entry));
+                    }
+                    entry = next;
+                }
+            }
+            if (size == 0) {
+                currentTime = Math.max(currentTime, now - now % tickMillis);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 取出最早到期的格子中的一个条目，用于容量已满时提前淘汰
+     * @return 时间轮为空时返回null
+     */
+    T pollEarliest() {
+        for (int level = 0; level < ticks.length; level++) {
+            int current = slot(level, currentTime);
+            for (int i = 1; i <= wheelSize; i++) {
+                Entry head = slots[level][(current + i) % wheelSize].head;
+                if (head != null) {
+                    remove(head);
+                    return itemOf(head);
+                }
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * 条目只由add放入，类型一定是T
+     */
+    @SuppressWarnings("unchecked")
+    private T itemOf(Entry entry) {
+        return (T) entry.item;
+    }
+
+    private long start(int level) {
+        return currentTime - currentTime % ticks[level];
+    }
+
+    private int slot(int level, long time) {
+        return (int) ((time / ticks[level]) % wheelSize);
+    }
+}
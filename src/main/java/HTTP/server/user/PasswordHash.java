@@ -0,0 +1,134 @@
+package HTTP.server.user;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serial;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * 加盐的密码摘要，算法和迭代次数随每条记录保存，提高迭代次数后旧记录仍然可以校验
+ * 编码格式: 算法(byte) 迭代次数(int) 盐长度(byte) 盐 摘要长度(byte) 摘要
+ * PLAIN是旧版本保存的明文密码，只用于读取旧数据，校验成功后应重新计算摘要
+ */
+public class PasswordHash implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 6803520170914711328L;
+    static final byte PLAIN = 0;
+    static final byte PBKDF2_SHA256 = 1;
+    private static final String PBKDF2_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BYTES = 32;
+
+    // SecureRandom内部有锁，每个线程使用自己的实例
+    private static final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(SecureRandom::new);
+
+    private final byte algorithm;
+    private final int iterations;
+    private final byte[] salt;
+    private final byte[] hash;
+
+    private PasswordHash(byte algorithm, int iterations, byte[] salt, byte[] hash) {
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    /**
+     * 使用新的盐计算摘要，耗时与迭代次数成正比
+     */
+    public static PasswordHash create(String password, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.get().nextBytes(salt);
+        return new PasswordHash(PBKDF2_SHA256, iterations, salt, pbkdf2(password, salt, iterations));
+    }
+
+    static PasswordHash plain(String password) {
+        return new PasswordHash(PLAIN, 0, new byte[0], password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 比较时间与密码内容无关
+     */
+    public boolean verify(String password) {
+        byte[] actual = algorithm == PLAIN
+                ? password.getBytes(StandardCharsets.UTF_8)
+                : pbkdf2(password, salt, iterations);
+        return MessageDigest.isEqual(actual, hash);
+    }
+
+    /**
+     * @return 记录的算法或迭代次数低于当前设置时返回true
+     */
+    public boolean needsRehash(int currentIterations) {
+        return algorithm != PBKDF2_SHA256 || iterations < currentIterations;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BYTES * 8);
+        try {
+            return SecretKeyFactory.getInstance(PBKDF2_ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            // JDK自带该算法，不会出现
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(7 + salt.length + hash.length);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(algorithm);
+            out.writeInt(iterations);
+            out.writeByte(salt.length);
+            out.write(salt);
+            out.writeByte(hash.length);
+            out.write(hash);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static PasswordHash decode(DataInputStream in) throws IOException {
+        byte algorithm = in.readByte();
+        int iterations = in.readInt();
+        byte[] salt = in.readNBytes(in.readUnsignedByte());
+        byte[] hash = in.readNBytes(in.readUnsignedByte());
+        if (algorithm != PLAIN && algorithm != PBKDF2_SHA256) {
+            throw new IOException("Unknown password hash algorithm: " + algorithm);
+        }
+        return new PasswordHash(algorithm, iterations, salt, hash);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof PasswordHash that)) return false;
+        return algorithm == that.algorithm && iterations == that.iterations
+                && Arrays.equals(salt, that.salt) && Arrays.equals(hash, that.hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(salt) + Arrays.hashCode(hash);
+    }
+
+    @Override
+    public String toString() {
+        return "PasswordHash{algorithm = " + algorithm + ", iterations = " + iterations + "}";
+    }
+}
@@ -0,0 +1,125 @@
+package HTTP.server.user;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 在独立的有界线程池中计算和校验密码摘要
+ * 队列满时立即拒绝，大量登录请求不会占满处理请求的线程，也不会无限排队
+ * 迭代次数可以随时调整，只影响之后计算的摘要，旧记录在下次登录成功时重新计算
+ */
+public class PasswordHasher implements Closeable {
+    static final int DEFAULT_ITERATIONS = 600_000;
+    private static final int MIN_ITERATIONS = 10_000;
+    // 每个线程最多排队的任务数，排队时间应远小于异步请求的超时时间
+    private static final int DEFAULT_QUEUE_LIMIT_PER_THREAD = 16;
+
+    private final ThreadPoolExecutor executor;
+    private volatile int iterations;
+    // 用户不存在时也校验一次，响应时间不暴露用户是否存在
+    private volatile PasswordHash dummyHash;
+    private final LongAdder rejected = new LongAdder();
+
+    public PasswordHasher() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    private PasswordHasher(int threads) {
+        this(threads, threads * DEFAULT_QUEUE_LIMIT_PER_THREAD, DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * @param threads 计算摘要的线程数
+     * @param queueLimit 等待计算的任务数上限，超过时拒绝
+     */
+    public PasswordHasher(int threads, int queueLimit, int iterations) {
+        if (threads <= 0 || queueLimit <= 0) {
+            throw new IllegalArgumentException("threads and queueLimit must be positive");
+        }
+        this.iterations = checkIterations(iterations);
+        AtomicInteger index = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueLimit),
+                task -> Thread.ofPlatform().daemon().name("password-hasher-" + index.getAndIncrement()).unstarted(task),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public void setIterations(int iterations) {
+        this.iterations = checkIterations(iterations);
+    }
+
+    private static int checkIterations(int iterations) {
+        if (iterations < MIN_ITERATIONS) {
+            throw new IllegalArgumentException("Too few iterations: " + iterations);
+        }
+        return iterations;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public CompletableFuture<PasswordHash> hash(String password) {
+        return submit(() -> PasswordHash.create(password, iterations));
+    }
+
+    /**
+     * @param hash 为null时与一个无关的摘要比较，结果总是false
+     */
+    public CompletableFuture<Boolean> verify(PasswordHash hash, String password) {
+        return submit(() -> verifyNow(hash, password));
+    }
+
+    /**
+     * 在当前线程校验，调用方应已在本线程池中
+     */
+    boolean verifyNow(PasswordHash hash, String password) {
+        if (hash == null) {
+            PasswordHash dummy = dummyHash;
+            if (dummy == null || dummy.getIterations() != iterations) {
+                dummy = dummyHash = PasswordHash.create("", iterations);
+            }
+            dummy.verify(password);
+            return false;
+        }
+        return hash.verify(password);
+    }
+
+    /**
+     * 在线程池中执行，队列已满时返回以RejectedExecutionException失败的future
+     */
+    <T> CompletableFuture<T> submit(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, executor);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("iterations: %d, threads: %d, queued: %d, completed: %d, rejected: %d",
+                iterations, executor.getMaximumPoolSize(), getQueueSize(), executor.getCompletedTaskCount(), getRejectedCount());
+    }
+}
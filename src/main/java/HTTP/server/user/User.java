@@ -13,20 +13,48 @@ public class User implements Serializable {
     // .*表示全局扫描，(?=.*[])表示检查整个串中是否包含[]中的内容
     private static final String PASSWORD_FORMAT = "(?=.*\\d)(?=.*[a-z])(?=.*[A-Z])[\\w&&[^_]]{8,20}";
     private String username;
-    private String password;
+    // 不保存明文密码
+    private PasswordHash passwordHash;
 
     public User() {
     }
 
+    /**
+     * 在当前线程计算密码摘要，耗时较长，处理请求时应使用PasswordHasher
+     */
     public User(String username, String password) throws UsernameFormatException, PasswordFormatException {
+        checkUsername(username);
+        checkPassword(password);
+        this.username = username;
+        this.passwordHash = PasswordHash.create(password, PasswordHasher.DEFAULT_ITERATIONS);
+    }
+
+    public User(String username, PasswordHash passwordHash) throws UsernameFormatException {
+        checkUsername(username);
+        this.username = username;
+        this.passwordHash = passwordHash;
+    }
+
+    /**
+     * 从持久化数据恢复用户，保存时已经校验过格式，不再校验
+     */
+    static User restore(String username, PasswordHash passwordHash) {
+        User user = new User();
+        user.username = username;
+        user.passwordHash = passwordHash;
+        return user;
+    }
+
+    public static void checkUsername(String username) throws UsernameFormatException {
         if (!username.matches(USERNAME_FORMAT)) {
             throw new UsernameFormatException();
         }
+    }
+
+    public static void checkPassword(String password) throws PasswordFormatException {
         if (!password.matches(PASSWORD_FORMAT)) {
             throw new PasswordFormatException();
         }
-        this.username = username;
-        this.password = password;
     }
 
     /**
@@ -39,36 +67,37 @@ public class User implements Serializable {
 
     /**
      * 获取
-     * @return password
+     * @return passwordHash
      */
-    public String getPassword() {
-        return password;
+    public PasswordHash getPasswordHash() {
+        return passwordHash;
     }
 
     /**
-     * 设置
+     * 设置，在当前线程计算密码摘要
      * @param password
      */
     public void setPassword(String password) throws PasswordFormatException {
-        if (!password.matches(PASSWORD_FORMAT)) {
-            throw new PasswordFormatException();
-        }
-        this.password = password;
+        checkPassword(password);
+        this.passwordHash = PasswordHash.create(password, PasswordHasher.DEFAULT_ITERATIONS);
     }
 
     @Override
     public String toString() {
-        return "User{username = " + username + ", password = " + password + "}";
+        return "User{username = " + username + "}";
     }
 
+    /**
+     * 用户名唯一标识用户，与密码无关
+     */
     @Override
     public boolean equals(Object o) {
         if (!(o instanceof User user)) return false;
-        return Objects.equals(username, user.username) && Objects.equals(password, user.password);
+        return Objects.equals(username, user.username);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(username, password);
+        return Objects.hashCode(username);
     }
 }
@@ -0,0 +1,396 @@
+package HTTP.server.user;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * 用户数据的预写日志，只追加，不改写已有的内容
+ * 目录中有快照users.N.snapshot和日志users.N.log，快照N包含N之前所有日志的内容
+ * 启动时映射最新的快照(见UserSnapshot)，只把之后的日志读入内存
+ * 写入线程把记录放入缓冲区后等待，刷盘线程把这段时间积累的记录一次写入并fsync(组提交)
+ * 日志超过阈值时切换到新的日志文件，由后台线程把旧快照和内存中的用户合并写入新快照，然后删除旧文件
+ * 每条记录: 长度(int) CRC32(int) 操作(byte) 用户名(UTF) 密码摘要(见PasswordHash)，末尾不完整的记录在启动时截断
+ * 同一用户名的记录后写入的覆盖先写入的，重新计算密码摘要时追加新记录
+ */
+class UserLog implements Closeable {
+    // 旧版本的记录，密码为明文
+    private static final byte OP_PUT_PLAIN = 1;
+    private static final byte OP_PUT = 2;
+    // 版本1的快照与日志的记录格式相同，只能顺序读取，读入内存后在下次压缩时改写为新版本
+    private static final int LEGACY_SNAPSHOT_VERSION = 1;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+    private static final long DEFAULT_COMPACT_THRESHOLD = 16L * 1024 * 1024;
+    private static final Pattern FILE_NAME = Pattern.compile("users\\.(\\d+)\\.(log|snapshot)");
+
+    private final Path directory;
+    private final long compactThreshold;
+    // 不在快照中的用户，调用时应包含已经追加到日志中的所有用户
+    private final Supplier<Map<String, User>> deltaSource;
+    // 新快照生效后调用，参数为已写入快照的用户，调用方可以从内存中移除
+    private final Consumer<Map<String, User>> onCompacted;
+    private volatile UserSnapshot snapshot = UserSnapshot.EMPTY;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appendedSequence;
+    private long durableSequence;
+    private IOException failure;
+    private boolean closed;
+
+    // 以下字段只由刷盘线程访问
+    private FileChannel channel;
+    private long generation;
+    private long logBytes;
+    private volatile long snapshotBytes;
+    private volatile boolean compacting;
+    private Thread flusher;
+
+    UserLog(Path directory, Supplier<Map<String, User>> deltaSource, Consumer<Map<String, User>> onCompacted) {
+        this(directory, DEFAULT_COMPACT_THRESHOLD, deltaSource, onCompacted);
+    }
+
+    UserLog(Path directory, long compactThreshold,
+            Supplier<Map<String, User>> deltaSource, Consumer<Map<String, User>> onCompacted) {
+        this.directory = directory;
+        this.compactThreshold = compactThreshold;
+        this.deltaSource = deltaSource;
+        this.onCompacted = onCompacted;
+    }
+
+    /**
+     * 当前的快照，快照之后的用户由调用方保存在内存中
+     */
+    UserSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * 映射最新的快照，读取之后的日志，然后打开日志准备追加
+     * @param target 按写入顺序接收快照之后的用户，同一用户名后出现的覆盖先出现的
+     */
+    void open(Consumer<User> target) throws IOException {
+        Files.createDirectories(directory);
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        TreeMap<Long, Path> snapshots = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    // 写入快照时中断留下的文件
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                Matcher matcher = FILE_NAME.matcher(name);
+                if (!matcher.matches()) continue;
+                long fileGeneration = Long.parseLong(matcher.group(1));
+                (matcher.group(2).equals("log") ? logs : snapshots).put(fileGeneration, file);
+            }
+        }
+
+        long base = 0;
+        if (!snapshots.isEmpty()) {
+            base = snapshots.lastKey();
+            snapshotBytes = Files.size(snapshots.lastEntry().getValue());
+            readSnapshot(snapshots.lastEntry().getValue(), target);
+        }
+        generation = Math.max(Math.max(base, 1), logs.isEmpty() ? 1 : logs.lastKey());
+        long currentBytes = 0;
+        for (var entry : logs.entrySet()) {
+            if (entry.getKey() < base) continue;
+            long valid = readLog(entry.getValue(), target);
+            if (valid < Files.size(entry.getValue())) {
+                System.err.println("Ignoring incomplete or corrupted user log records in " + entry.getValue());
+            }
+            if (entry.getKey() == generation) {
+                currentBytes = valid;
+            }
+        }
+
+        channel = FileChannel.open(logPath(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        // 截断末尾不完整的记录(写入时崩溃)，之后从有效内容的末尾继续追加
+        logBytes = currentBytes;
+        channel.truncate(logBytes);
+        channel.position(logBytes);
+        deleteBefore(base);
+
+        flusher = Thread.ofPlatform().daemon().name("user-log-flusher").start(this::flushLoop);
+    }
+
+    /**
+     * 追加一条记录，返回时记录已经写入磁盘
+     */
+    void append(User user) throws IOException {
+        byte[] record = encode(user);
+        long sequence;
+        lock.lock();
+        try {
+            if (failure != null) throw failure;
+            if (closed) throw new IOException("User log is closed");
+            pending.write(record);
+            sequence = ++appendedSequence;
+            appended.signal();
+            while (durableSequence < sequence && failure == null) {
+                flushed.awaitUninterruptibly();
+            }
+            if (durableSequence < sequence) throw failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            byte[] batch;
+            long batchSequence;
+            lock.lock();
+            try {
+                while (pending.size() == 0 && !closed) {
+                    appended.awaitUninterruptibly();
+                }
+                if (pending.size() == 0) return;
+                batch = pending.toByteArray();
+                pending = new ByteArrayOutputStream();
+                batchSequence = appendedSequence;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                logBytes += batch.length;
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+
+            lock.lock();
+            try {
+                durableSequence = batchSequence;
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            // 日志比快照大时压缩，压缩的总开销与写入的记录数成正比
+            if (!compacting && logBytes >= Math.max(compactThreshold, snapshotBytes)) {
+                try {
+                    rotate();
+                } catch (IOException e) {
+                    fail(e);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 写入失败后不再接受新的记录，等待中的写入线程收到异常
+     */
+    private void fail(IOException e) {
+        e.printStackTrace();
+        lock.lock();
+        try {
+            failure = e;
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 之后的记录写入新的日志，旧日志的内容由后台线程写入快照
+     */
+    private void rotate() throws IOException {
+        channel.close();
+        generation++;
+        channel = FileChannel.open(logPath(generation),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        logBytes = 0;
+        long snapshotGeneration = generation;
+        compacting = true;
+        Thread.ofPlatform().daemon().name("user-log-compactor").start(() -> {
+            try {
+                writeSnapshot(snapshotGeneration);
+                deleteBefore(snapshotGeneration);
+            } catch (IOException e) {
+                // 快照失败时旧日志保留，下次切换时重试
+                e.printStackTrace();
+            } finally {
+                compacting = false;
+            }
+        });
+    }
+
+    /**
+     * 切换日志之前加入的用户都已在内存中，此时的全部用户包含旧日志的所有内容
+     */
+    private void writeSnapshot(long snapshotGeneration) throws IOException {
+        Path target = snapshotPath(snapshotGeneration);
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+        Map<String, User> delta = deltaSource.get();
+        UserSnapshot.write(temp, snapshot, delta);
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        snapshotBytes = Files.size(target);
+        // 先替换快照再通知调用方移除，查找时总能在两者之一中找到用户
+        snapshot = UserSnapshot.open(target);
+        onCompacted.accept(delta);
+    }
+
+    /**
+     * 新版本的快照直接映射，旧版本的快照读入target
+     */
+    private void readSnapshot(Path file, Consumer<User> target) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+            int magic = in.readInt();
+            int version = in.readInt();
+            if (magic == UserSnapshot.MAGIC && UserSnapshot.isSupported(version)) {
+                snapshot = UserSnapshot.open(file);
+                return;
+            }
+            if (magic != UserSnapshot.MAGIC || version != LEGACY_SNAPSHOT_VERSION) {
+                throw new IOException("Unsupported user snapshot: " + file);
+            }
+            readRecords(in, target);
+        }
+    }
+
+    /**
+     * @return 有效记录的总长度
+     */
+    private long readLog(Path log, Consumer<User> target) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log), 64 * 1024))) {
+            return readRecords(in, target);
+        }
+    }
+
+    /**
+     * 读取到末尾或第一条不完整、校验失败的记录为止
+     */
+    private static long readRecords(DataInputStream in, Consumer<User> target) throws IOException {
+        long valid = 0;
+        CRC32 crc = new CRC32();
+        while (true) {
+            int length;
+            int checksum;
+            byte[] payload;
+            try {
+                length = in.readInt();
+                checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_BYTES) return valid;
+                payload = in.readNBytes(length);
+            } catch (EOFException e) {
+                return valid;
+            }
+            if (payload.length < length) return valid;
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) return valid;
+
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+            byte op = record.readByte();
+            if (op == OP_PUT) {
+                target.accept(User.restore(record.readUTF(), PasswordHash.decode(record)));
+            } else if (op == OP_PUT_PLAIN) {
+                target.accept(User.restore(record.readUTF(), PasswordHash.plain(record.readUTF())));
+            }
+            valid += RECORD_HEADER_BYTES + length;
+        }
+    }
+
+    private static byte[] encode(User user) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(OP_PUT);
+        out.writeUTF(user.getUsername());
+        out.write(user.getPasswordHash().encode());
+        byte[] bytes = payload.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + bytes.length);
+        record.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes);
+        return record.array();
+    }
+
+    private void deleteBefore(long keepGeneration) throws IOException {
+        List<Path> stale = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches() && Long.parseLong(matcher.group(1)) < keepGeneration) {
+                    stale.add(file);
+                }
+            }
+        }
+        for (Path file : stale) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * 重命名后同步目录，保证崩溃后新文件名仍然存在；部分平台不支持，忽略失败
+     */
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private Path logPath(long logGeneration) {
+        return directory.resolve("users." + logGeneration + ".log");
+    }
+
+    private Path snapshotPath(long snapshotGeneration) {
+        return directory.resolve("users." + snapshotGeneration + ".snapshot");
+    }
+
+    /**
+     * 写入剩余的记录后关闭
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            appended.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -1,74 +1,187 @@
 package HTTP.server.user;
 
 import java.io.*;
-import java.util.HashSet;
-import java.util.stream.Collectors;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public class UserManager {
-    private UserManager() {}
+/**
+ * 用户仓库，按用户名索引，可以被多个连接并发访问
+ * 修改追加到预写日志中，注册的开销与用户数量无关
+ * 大部分用户只存在于内存映射的快照中，查找时按需读取；内存中只保存最近一次快照之后注册的用户
+ * 登录状态不在这里保存，由会话记录当前用户
+ */
+public class UserManager implements Closeable {
+    private static final String PATH_SEPARATOR = FileSystems.getDefault().getSeparator();
+    private static final String DATA_PATH = "." + PATH_SEPARATOR + "data" + PATH_SEPARATOR + "users";
 
-    private static User currentUser;
-    private static HashSet<User> users;
-    private static HashSet<String> usernames;
-    private static final String USERS_PATH = "09PuzzleGame\\data\\users";
+    // 最近一次快照之后注册的用户
+    private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+    private final UserLog log;
+    private final PasswordHasher passwordHasher;
+    // 重新计算的摘要在这里等待刷盘，不占用计算摘要的线程
+    private final ExecutorService logWriter = Executors.newVirtualThreadPerTaskExecutor();
 
-    static {
-        File usersFile = new File(USERS_PATH);
-        if (!usersFile.exists()) {
-            new File(usersFile.getParent()).mkdirs();
-            try {
-                usersFile.createNewFile();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-            users = new HashSet<>();
-            usernames = new HashSet<>();
-            setUsers(users);
-        } else {
-            readUsers();
+    public UserManager() {
+        this(DATA_PATH);
+    }
+
+    /**
+     * @param dataPath 保存日志和快照的目录
+     */
+    public UserManager(String dataPath) {
+        this(dataPath, new PasswordHasher());
+    }
+
+    public UserManager(String dataPath, PasswordHasher passwordHasher) {
+        this.passwordHasher = passwordHasher;
+        log = new UserLog(Path.of(dataPath), () -> new HashMap<>(users), this::removeCompacted);
+        try {
+            log.open(this::replay);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
-    public static HashSet<User> getUsers() {
-        return users;
+    /**
+     * 快照中的用户每次查找都会重新读取，返回的对象不会被缓存
+     */
+    public User getUser(String username) {
+        User user = users.get(username);
+        return user != null ? user : log.getSnapshot().get(username);
     }
 
-    public static HashSet<String> getUsernames() {
-        return usernames;
+    public boolean contains(String username) {
+        return users.containsKey(username) || log.getSnapshot().contains(username);
     }
 
-    public static void setUsers(HashSet<User> users) {
-        UserManager.users = users;
-        readUsernames();
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(USERS_PATH))) {
-            oos.writeObject(users);
+    /**
+     * 内存中重新计算过摘要的用户同时存在于快照中，只计一次
+     * 内存中的用户数受压缩阈值限制，逐个检查的开销与用户总数无关
+     */
+    public int size() {
+        UserSnapshot snapshot = log.getSnapshot();
+        int size = snapshot.size();
+        for (String username : users.keySet()) {
+            if (!snapshot.contains(username)) size++;
+        }
+        return size;
+    }
+
+    /**
+     * 注册新用户
+     * @return 用户名已存在时返回false
+     */
+    public boolean register(User user) {
+        if (users.putIfAbsent(user.getUsername(), user) != null) {
+            return false;
+        }
+        // 在放入内存之后检查快照，压缩时用户先进入新快照再从内存移除，两次检查之间不会遗漏
+        if (log.getSnapshot().contains(user.getUsername())) {
+            removeIfSame(user);
+            return false;
+        }
+        try {
+            log.append(user);
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            // 没有写入磁盘的用户不能登录
+            removeIfSame(user);
+            throw new UncheckedIOException(e);
         }
+        return true;
     }
 
-    public static User getCurrentUser() {
-        return currentUser;
+    /**
+     * 校验格式后在PasswordHasher的线程池中计算密码摘要，然后注册
+     * @return 完成时为false表示用户名已存在；线程池已满时以RejectedExecutionException失败
+     */
+    public CompletableFuture<Boolean> register(String username, String password)
+            throws UsernameFormatException, PasswordFormatException {
+        User.checkUsername(username);
+        User.checkPassword(password);
+        // 已存在的用户名不计算摘要
+        if (contains(username)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return passwordHasher.hash(password).thenApply(passwordHash -> register(User.restore(username, passwordHash)));
+    }
+
+    /**
+     * 在PasswordHasher的线程池中校验用户名和密码
+     * 摘要的迭代次数低于当前设置时，校验成功后另外提交重新计算的任务，不推迟本次登录
+     * @return 完成时为null表示用户不存在或密码错误；线程池已满时以RejectedExecutionException失败
+     */
+    public CompletableFuture<User> authenticate(String username, String password) {
+        User user = getUser(username);
+        CompletableFuture<User> result = passwordHasher.submit(() ->
+                passwordHasher.verifyNow(user != null ? user.getPasswordHash() : null, password) ? user : null);
+        result.thenAccept(verified -> {
+            if (verified != null && verified.getPasswordHash().needsRehash(passwordHasher.getIterations())) {
+                rehash(verified, password);
+            }
+        });
+        return result;
     }
 
-    public static void login(User user) {
-        currentUser = user;
+    /**
+     * 尽力而为，线程池已满或写入失败时旧的摘要仍然有效，下次登录时重试
+     * 摘要在PasswordHasher的线程池中计算，写入日志需要等待刷盘，在logWriter中执行
+     */
+    private void rehash(User user, String password) {
+        // 只替换校验时读到的版本(或快照中的版本)，已被其他请求替换过时不再计算
+        User previous = users.get(user.getUsername());
+        if (previous != null && previous != user) return;
+        passwordHasher.hash(password).thenAcceptAsync(passwordHash -> {
+            User upgraded = User.restore(user.getUsername(), passwordHash);
+            User replaced = users.compute(user.getUsername(), (username, current) -> current == previous ? upgraded : current);
+            if (replaced != upgraded) return;
+            try {
+                log.append(upgraded);
+            } catch (IOException e) {
+                e.printStackTrace();
+                users.computeIfPresent(user.getUsername(), (username, current) -> current == upgraded ? previous : current);
+            }
+        }, logWriter);
     }
 
-    public static void logout() {
-        currentUser = null;
+    public PasswordHasher getPasswordHasher() {
+        return passwordHasher;
     }
 
-    private static void readUsers() {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(USERS_PATH))) {
-            users = (HashSet<User>) ois.readObject();
-        } catch (IOException | ClassNotFoundException e) {
-            throw new RuntimeException(e);
+    /**
+     * 压缩时切换日志之后的记录也可能已经写入快照，与快照相同的不再保存在内存中
+     */
+    private void replay(User user) {
+        User stored = log.getSnapshot().get(user.getUsername());
+        if (stored != null && stored.getPasswordHash().equals(user.getPasswordHash())) {
+            users.remove(user.getUsername());
+        } else {
+            users.put(user.getUsername(), user);
+        }
+    }
+
+    private void removeCompacted(Map<String, User> compacted) {
+        for (User user : compacted.values()) {
+            removeIfSame(user);
         }
-        readUsernames();
     }
 
-    private static void readUsernames() {
-        usernames = users.stream().map(User::getUsername).collect(Collectors.toCollection(HashSet::new));
+    /**
+     * 只移除同一个对象，同名的新用户不受影响
+     */
+    private void removeIfSame(User user) {
+        users.computeIfPresent(user.getUsername(), (username, current) -> current == user ? null : current);
+    }
+
+    @Override
+    public void close() throws IOException {
+        passwordHasher.close();
+        logWriter.shutdown();
+        log.close();
     }
 }
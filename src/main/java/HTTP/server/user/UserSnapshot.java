@@ -0,0 +1,250 @@
+package HTTP.server.user;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * 内存映射的用户快照，按用户名的哈希值建立索引，查找时只读取需要的记录，启动时不把用户读入堆内存
+ * 文件格式(大端序):
+ * 头部: 魔数(int) 版本(int) 用户数(int) 索引槽数(int，2的幂)
+ * 索引: 每槽一个int，为记录在文件中的偏移，0表示空槽，冲突时线性探测
+ * 记录: 用户名长度(short) 用户名(UTF-8) 密码摘要长度(short) 密码摘要(见PasswordHash)
+ * 版本2的记录保存明文密码，仍然可以读取，下次压缩时改写为当前版本
+ */
+class UserSnapshot {
+    static final int MAGIC = 0x55534e50;
+    static final int VERSION = 3;
+    private static final int PLAIN_PASSWORD_VERSION = 2;
+    private static final int HEADER_BYTES = 16;
+    // 索引最多半满，探测长度较短
+    private static final int LOAD_FACTOR_INVERSE = 2;
+    private static final int MAX_TABLE_SIZE = 1 << 28;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    static final UserSnapshot EMPTY = new UserSnapshot(null, VERSION, 0, 0);
+
+    private final ByteBuffer buffer;
+    private final int version;
+    private final int count;
+    private final int tableSize;
+
+    private UserSnapshot(ByteBuffer buffer, int version, int count, int tableSize) {
+        this.buffer = buffer;
+        this.version = version;
+        this.count = count;
+        this.tableSize = tableSize;
+    }
+
+    static boolean isSupported(int version) {
+        return version == VERSION || version == PLAIN_PASSWORD_VERSION;
+    }
+
+    /**
+     * 映射快照文件，调用方已经确认文件的魔数和版本
+     */
+    static UserSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("User snapshot too large: " + file);
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC || !isSupported(buffer.getInt(4))) {
+                throw new IOException("Unsupported user snapshot: " + file);
+            }
+            int count = buffer.getInt(8);
+            int tableSize = buffer.getInt(12);
+            if (Integer.bitCount(tableSize) != 1 || HEADER_BYTES + (long) tableSize * 4 > buffer.limit()) {
+                throw new IOException("Corrupted user snapshot: " + file);
+            }
+            return new UserSnapshot(buffer, buffer.getInt(4), count, tableSize);
+        }
+    }
+
+    /**
+     * @return 用户不存在时返回null
+     */
+    User get(String username) {
+        int offset = find(username);
+        return offset == 0 ? null : read(offset);
+    }
+
+    boolean contains(String username) {
+        return find(username) != 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    private int find(String username) {
+        if (tableSize == 0) return 0;
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        int mask = tableSize - 1;
+        int slot = hash(username) & mask;
+        for (int probes = 0; probes < tableSize; probes++) {
+            int offset = buffer.getInt(HEADER_BYTES + slot * 4);
+            if (offset == 0) return 0;
+            if (nameEquals(offset, name)) return offset;
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    private boolean nameEquals(int offset, byte[] name) {
+        int length = Short.toUnsignedInt(buffer.getShort(offset));
+        if (length != name.length) return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + 2 + i) != name[i]) return false;
+        }
+        return true;
+    }
+
+    private String readUsername(int offset) {
+        byte[] username = new byte[Short.toUnsignedInt(buffer.getShort(offset))];
+        buffer.get(offset + 2, username);
+        return new String(username, StandardCharsets.UTF_8);
+    }
+
+    private User read(int offset) {
+        int usernameLength = Short.toUnsignedInt(buffer.getShort(offset));
+        byte[] username = new byte[usernameLength];
+        buffer.get(offset + 2, username);
+        int passwordOffset = offset + 2 + usernameLength;
+        byte[] password = new byte[Short.toUnsignedInt(buffer.getShort(passwordOffset))];
+        buffer.get(passwordOffset + 2, password);
+
+        PasswordHash passwordHash;
+        if (version == PLAIN_PASSWORD_VERSION) {
+            passwordHash = PasswordHash.plain(new String(password, StandardCharsets.UTF_8));
+        } else {
+            try {
+                passwordHash = PasswordHash.decode(new DataInputStream(new ByteArrayInputStream(password)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return User.restore(new String(username, StandardCharsets.UTF_8), passwordHash);
+    }
+
+    /**
+     * String.hashCode的算法是规范的一部分，写入和读取使用相同的哈希值
+     */
+    private static int hash(String username) {
+        int h = username.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 把previous中的用户和delta合并写入file，delta中的用户覆盖previous中的同名用户
+     * @return 写入的用户数
+     */
+    static int write(Path file, UserSnapshot previous, Map<String, User> delta) throws IOException {
+        long capacity = Math.max(1, ((long) previous.size() + delta.size()) * LOAD_FACTOR_INVERSE);
+        if (capacity > MAX_TABLE_SIZE) {
+            throw new IOException("Too many users for one snapshot: " + capacity / LOAD_FACTOR_INVERSE);
+        }
+        int tableSize = Integer.highestOneBit((int) capacity);
+        if (tableSize < capacity) {
+            tableSize <<= 1;
+        }
+
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer writer = new Writer(channel, tableSize);
+            for (User user : delta.values()) {
+                writer.write(user);
+            }
+            for (int slot = 0; slot < previous.tableSize; slot++) {
+                int offset = previous.buffer.getInt(HEADER_BYTES + slot * 4);
+                if (offset != 0 && !delta.containsKey(previous.readUsername(offset))) {
+                    writer.write(previous.read(offset));
+                }
+            }
+            writer.finish();
+            channel.force(true);
+            return writer.count;
+        }
+    }
+
+    /**
+     * 先在索引区之后顺序写入记录，最后写入头部和索引
+     */
+    private static class Writer {
+        private final FileChannel channel;
+        private final int[] table;
+        private final DataOutputStream out;
+        private long position;
+        private int count;
+
+        Writer(FileChannel channel, int tableSize) throws IOException {
+            this.channel = channel;
+            this.table = new int[tableSize];
+            this.position = HEADER_BYTES + (long) tableSize * 4;
+            channel.position(position);
+            this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE));
+        }
+
+        void write(User user) throws IOException {
+            byte[] username = user.getUsername().getBytes(StandardCharsets.UTF_8);
+            byte[] password = user.getPasswordHash().encode();
+            int length = 4 + username.length + password.length;
+            // 偏移量是int，文件也需要能被一次映射
+            if (position + length > Integer.MAX_VALUE) {
+                throw new IOException("User snapshot too large");
+            }
+            int mask = table.length - 1;
+            int slot = hash(user.getUsername()) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = (int) position;
+            out.writeShort(username.length);
+            out.write(username);
+            out.writeShort(password.length);
+            out.write(password);
+            position += length;
+            count++;
+        }
+
+        void finish() throws IOException {
+            out.flush();
+            ByteBuffer chunk = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            chunk.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(table.length);
+            long offset = 0;
+            for (int slot = 0; slot < table.length; slot++) {
+                if (!chunk.hasRemaining()) {
+                    offset += writeChunk(chunk, offset);
+                }
+                chunk.putInt(table[slot]);
+            }
+            writeChunk(chunk, offset);
+        }
+
+        private int writeChunk(ByteBuffer chunk, long offset) throws IOException {
+            chunk.flip();
+            int length = chunk.remaining();
+            while (chunk.hasRemaining()) {
+                offset += channel.write(chunk, offset);
+            }
+            chunk.clear();
+            return length;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UserSnapshot{users = " + count + ", slots = " + tableSize + ", bytes = "
+                + (buffer == null ? 0 : buffer.limit()) + "}";
+    }
+}
@@ -0,0 +1,61 @@
+package HTTP.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 强ETag的生成与If-None-Match的比较
+ */
+public class ETagUtil {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // 取摘要的前8个字节，对于区分同一资源的不同版本已经足够
+    private static final int DIGEST_BYTES = 8;
+
+    private ETagUtil() {}
+
+    /**
+     * 根据内容生成ETag，内容相同时ETag相同，与修改时间无关
+     */
+    public static String fromContent(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder sb = new StringBuilder(DIGEST_BYTES * 2 + 2).append('"');
+            for (int i = 0; i < DIGEST_BYTES; i++) {
+                sb.append(HEX[(digest[i] >> 4) & 0xf]).append(HEX[digest[i] & 0xf]);
+            }
+            return sb.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 根据文件长度和修改时间生成ETag，用于不读入内存的大文件
+     */
+    public static String fromMetadata(long length, long modifiedTime) {
+        return '"' + Long.toHexString(length) + '-' + Long.toHexString(modifiedTime) + '"';
+    }
+
+    /**
+     * 同一资源的不同内容编码是不同的表示，强ETag必须不同
+     */
+    public static String withEncoding(String etag, String encoding) {
+        return etag.substring(0, etag.length() - 1) + '-' + encoding + '"';
+    }
+
+    /**
+     * If-None-Match使用弱比较，忽略W/前缀；*匹配任何存在的资源
+     */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (etag == null) return false;
+        if (ifNoneMatch.trim().equals("*")) return true;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(etag)) return true;
+        }
+        return false;
+    }
+}
@@ -1,15 +1,19 @@
 package HTTP.utils;
 
+import HTTP.message.HTTPChunkSource;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
 
 public class FileUtil {
+    private static final int LIST_CHUNK_SIZE = 8 * 1024;
 
     private FileUtil() {}
 
@@ -25,11 +29,28 @@ public class FileUtil {
             throw new FileNotFoundException(path);
         }
 
-        Date lastModified = new Date(file.lastModified());
+        return formatTimestamp(file.lastModified());
+    }
+
+    public static String formatTimestamp(long millis) {
+        return HTTPDateUtil.format(millis);
+    }
+
+    /**
+     * 查找同目录下预先压缩好的.gz文件，不存在或早于原文件(已过期)时返回null
+     */
+    public static File findPrecompressed(String path, long modifiedTime) {
+        File precompressed = new File(path + ".gz");
+        if (!precompressed.isFile() || precompressed.lastModified() < modifiedTime) return null;
+        return precompressed;
+    }
 
-        SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
-        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-        return dateFormat.format(lastModified);
+    /**
+     * 解析HTTP日期(RFC 1123格式)
+     * @return 毫秒时间戳，格式错误时返回-1
+     */
+    public static long parseTimestamp(String timestamp) {
+        return HTTPDateUtil.parse(timestamp);
     }
 
     public static String listFiles(String path) {
@@ -43,6 +64,36 @@ public class FileUtil {
         return sb.toString();
     }
 
+    /**
+     * 逐块列出目录中的文件，每块约LIST_CHUNK_SIZE字节，目录很大时也不需要一次读入内存
+     */
+    public static HTTPChunkSource listFilesInChunks(String path) throws IOException {
+        DirectoryStream<Path> stream = Files.newDirectoryStream(Path.of(path));
+        Iterator<Path> iterator = stream.iterator();
+        return new HTTPChunkSource() {
+            @Override
+            public byte[] nextChunk() throws IOException {
+                StringBuilder sb = new StringBuilder();
+                try {
+                    while (sb.length() < LIST_CHUNK_SIZE && iterator.hasNext()) {
+                        sb.append(iterator.next().getFileName()).append("\n");
+                    }
+                } catch (DirectoryIteratorException e) {
+                    throw e.getCause();
+                }
+                return sb.isEmpty() ? null : HTTPEncodingUtil.encodeText(sb.toString());
+            }
+
+            @Override
+            public void close() {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        };
+    }
+
     public static byte[] read(String path) throws IOException {
         try (FileInputStream fis = new FileInputStream(path)) {
             StringBuilder sb = new StringBuilder();
@@ -0,0 +1,80 @@
+package HTTP.utils;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * HTTP日期(RFC 1123格式，如Sun, 06 Nov 1994 08:49:37 GMT)的格式化与解析
+ * DateTimeFormatter是线程安全的，不需要每次创建；当前时间的Date字段每秒只格式化一次
+ */
+public class HTTPDateUtil {
+    // RFC_1123_DATE_TIME输出的日期不补零，HTTP要求两位，格式化时使用固定的模式
+    private static final DateTimeFormatter FORMATTER =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    // 最近一次格式化的结果，同一秒内的时间戳直接复用
+    private static volatile CachedDate lastFormatted = new CachedDate(Long.MIN_VALUE, null);
+    private static volatile CachedDate currentDate = new CachedDate(Long.MIN_VALUE, null);
+
+    private HTTPDateUtil() {}
+
+    private static class CachedDate {
+        private final long second;
+        private final String text;
+        // Date字段的完整编码，只用于当前时间
+        private final byte[] field;
+
+        CachedDate(long second, String text) {
+            this(second, text, null);
+        }
+
+        CachedDate(long second, String text, byte[] field) {
+            this.second = second;
+            this.text = text;
+            this.field = field;
+        }
+    }
+
+    /**
+     * 格式化毫秒时间戳，精确到秒
+     */
+    public static String format(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        CachedDate cached = lastFormatted;
+        if (cached.second == second) return cached.text;
+        String text = FORMATTER.format(Instant.ofEpochSecond(second));
+        lastFormatted = new CachedDate(second, text);
+        return text;
+    }
+
+    /**
+     * 解析HTTP日期，日期中的日可以是一位或两位
+     * @return 毫秒时间戳，格式错误时返回-1
+     */
+    public static long parse(String date) {
+        try {
+            return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 当前时间的Date字段，包括结尾的CRLF，已编码为字节，每秒更新一次
+     */
+    public static byte[] currentDateField() {
+        long second = Math.floorDiv(System.currentTimeMillis(), 1000);
+        CachedDate cached = currentDate;
+        if (cached.second != second) {
+            // 多个线程同时更新时结果相同，不需要加锁
+            String text = FORMATTER.format(Instant.ofEpochSecond(second));
+            cached = new CachedDate(second, text, HTTPEncodingUtil.encodeText("Date: " + text + "\r\n"));
+            currentDate = cached;
+        }
+        return cached.field;
+    }
+}
@@ -0,0 +1,92 @@
+package HTTP.utils;
+
+import java.util.Arrays;
+
+/**
+ * 可复用的输出缓冲区，用于把报文直接序列化成字节，避免中间字符串
+ * 非线程安全，通过{@link #get()}为每个线程提供一个实例
+ */
+public class HTTPOutputBuffer {
+    private static final int INITIAL_CAPACITY = 1024;
+    // 超过该大小的缓冲区不再保留，避免偶尔的大报文长期占用内存
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final ThreadLocal<HTTPOutputBuffer> BUFFERS = ThreadLocal.withInitial(HTTPOutputBuffer::new);
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * 获取当前线程的缓冲区，返回前已清空
+     */
+    public static HTTPOutputBuffer get() {
+        HTTPOutputBuffer outputBuffer = BUFFERS.get();
+        outputBuffer.reset();
+        return outputBuffer;
+    }
+
+    public void reset() {
+        if (buffer.length > MAX_RETAINED_CAPACITY) {
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+        size = 0;
+    }
+
+    public HTTPOutputBuffer write(byte[] bytes) {
+        return write(bytes, 0, bytes.length);
+    }
+
+    public HTTPOutputBuffer write(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+        return this;
+    }
+
+    public HTTPOutputBuffer write(byte b) {
+        ensureCapacity(1);
+        buffer[size++] = b;
+        return this;
+    }
+
+    /**
+     * 按UTF-8写入文本，纯ASCII时逐字符写入，不产生临时数组
+     */
+    public HTTPOutputBuffer writeText(String text) {
+        int length = text.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                return write(HTTPEncodingUtil.encodeText(text));
+            }
+            buffer[size + i] = (byte) c;
+        }
+        size += length;
+        return this;
+    }
+
+    public HTTPOutputBuffer writeCRLF() {
+        return write(CRLF);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * 复制到目标数组的指定位置，方便与消息体一起一次性拼成完整报文
+     */
+    public void copyTo(byte[] target, int offset) {
+        System.arraycopy(buffer, 0, target, offset, size);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (buffer.length - size >= extra) return;
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+    }
+}
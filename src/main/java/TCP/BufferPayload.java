@@ -0,0 +1,82 @@
+package TCP;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * 堆外缓冲区中的数据，例如内存映射的文件区间，直接从映射的页写入socket
+ */
+class BufferPayload implements TCPPayload {
+    private static final byte[] EMPTY = new byte[0];
+
+    // 独立的位置和界限，同一个缓冲区可以同时被多个连接发送
+    private final ByteBuffer buffer;
+    private final Runnable onFault;
+
+    BufferPayload(ByteBuffer buffer, Runnable onFault) {
+        this.buffer = buffer.duplicate();
+        this.onFault = onFault;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) == 0 && TCPPayload.isNonBlocking(channel)) {
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            // 从映射区直接写入socket时，文件被截断表现为EFAULT，与连接断开区分开
+            onWriteFailed();
+            throw e;
+        } catch (InternalError e) {
+            // 在Java中访问已被截断的映射区(SIGBUS)
+            fault();
+            throw new IOException("Buffer is no longer accessible", e);
+        }
+        return true;
+    }
+
+    /**
+     * 文件截断后失效的是末尾的页，读取最后一个字节即可判断
+     */
+    private boolean isAccessible() {
+        if (onFault == null || buffer.limit() == 0) return true;
+        try {
+            buffer.get(buffer.limit() - 1);
+            return true;
+        } catch (InternalError e) {
+            return false;
+        }
+    }
+
+    private void fault() {
+        if (onFault != null) {
+            onFault.run();
+        }
+    }
+
+    @Override
+    public void onWriteFailed() {
+        if (!isAccessible()) {
+            fault();
+        }
+    }
+
+    @Override
+    public boolean appendBuffers(List<ByteBuffer> target) {
+        target.add(buffer);
+        return true;
+    }
+
+    /**
+     * 与文件一样不读入堆内存
+     */
+    @Override
+    public byte[] preview() {
+        return EMPTY;
+    }
+}
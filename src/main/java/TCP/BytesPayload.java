@@ -0,0 +1,45 @@
+package TCP;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+
+class BytesPayload implements TCPPayload {
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+    private final ByteBuffer buffer;
+
+    BytesPayload(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.buffer = ByteBuffer.wrap(bytes, offset, length);
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0 && TCPPayload.isNonBlocking(channel)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean appendBuffers(List<ByteBuffer> target) {
+        target.add(buffer);
+        return true;
+    }
+
+    @Override
+    public byte[] preview() {
+        if (offset == 0 && length == bytes.length) {
+            return bytes;
+        }
+        return Arrays.copyOfRange(bytes, offset, offset + length);
+    }
+}
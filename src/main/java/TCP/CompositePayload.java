@@ -0,0 +1,60 @@
+package TCP;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+class CompositePayload implements TCPPayload {
+    private final TCPPayload[] payloads;
+    private int current;
+
+    CompositePayload(TCPPayload... payloads) {
+        this.payloads = payloads;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (current < payloads.length) {
+            if (!payloads[current].writeTo(channel)) {
+                return false;
+            }
+            current++;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean appendBuffers(List<ByteBuffer> target) {
+        for (int i = current; i < payloads.length; i++) {
+            if (!payloads[i].appendBuffers(target)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void onWriteFailed() {
+        for (int i = current; i < payloads.length; i++) {
+            payloads[i].onWriteFailed();
+        }
+    }
+
+    @Override
+    public byte[] preview() {
+        ByteArrayOutputStream preview = new ByteArrayOutputStream();
+        for (TCPPayload payload : payloads) {
+            preview.writeBytes(payload.preview());
+        }
+        return preview.toByteArray();
+    }
+
+    @Override
+    public void release() {
+        for (TCPPayload payload : payloads) {
+            payload.release();
+        }
+    }
+}
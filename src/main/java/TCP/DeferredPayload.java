@@ -0,0 +1,93 @@
+package TCP;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * 异步生成的数据，完成前在发送队列中占位，保证响应顺序与请求顺序一致
+ */
+class DeferredPayload implements TCPPayload {
+    private final CompletableFuture<? extends TCPPayload> future;
+
+    DeferredPayload(CompletableFuture<? extends TCPPayload> future) {
+        this.future = future;
+    }
+
+    @Override
+    public boolean isResolved() {
+        return future.isDone();
+    }
+
+    @Override
+    public void whenResolved(Runnable callback) {
+        future.whenComplete((payload, e) -> callback.run());
+    }
+
+    /**
+     * 阻塞channel会等待数据生成；非阻塞channel在数据生成前返回false
+     */
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        if (!isResolved() && TCPPayload.isNonBlocking(channel)) {
+            return false;
+        }
+        TCPPayload payload = resolve();
+        return payload == null || payload.writeTo(channel);
+    }
+
+    @Override
+    public byte[] preview() {
+        TCPPayload payload = resolvedOrNull();
+        return payload == null ? new byte[0] : payload.preview();
+    }
+
+    @Override
+    public void release() {
+        TCPPayload payload = resolvedOrNull();
+        if (payload != null) {
+            payload.release();
+        } else {
+            // 连接已关闭，结果生成后直接释放
+            future.thenAccept(p -> {
+                if (p != null) p.release();
+            });
+        }
+    }
+
+    @Override
+    public boolean appendBuffers(List<ByteBuffer> target) {
+        TCPPayload payload = resolvedOrNull();
+        return payload != null && payload.appendBuffers(target);
+    }
+
+    @Override
+    public void onWriteFailed() {
+        TCPPayload payload = resolvedOrNull();
+        if (payload != null) {
+            payload.onWriteFailed();
+        }
+    }
+
+    @Override
+    public boolean closesConnection() {
+        TCPPayload payload = resolvedOrNull();
+        return payload != null && payload.closesConnection();
+    }
+
+    private TCPPayload resolve() throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw new IOException("Failed to produce payload", e.getCause());
+        }
+    }
+
+    private TCPPayload resolvedOrNull() {
+        if (!isResolved() || future.isCompletedExceptionally()) return null;
+        return future.join();
+    }
+}
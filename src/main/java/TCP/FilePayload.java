@@ -0,0 +1,60 @@
+package TCP;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 文件的一段，使用transferTo发送，在支持的系统上对应sendfile
+ */
+class FilePayload implements TCPPayload {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Path path;
+    private long position;
+    private long remaining;
+    private FileChannel fileChannel;
+
+    FilePayload(Path path, long position, long count) {
+        this.path = path;
+        this.position = position;
+        this.remaining = count;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        if (fileChannel == null) {
+            fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+        while (remaining > 0) {
+            long transferred = fileChannel.transferTo(position, remaining, channel);
+            if (transferred == 0) {
+                if (TCPPayload.isNonBlocking(channel)) {
+                    return false;
+                }
+                throw new IOException("File was truncated while sending: " + path);
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+        release();
+        return true;
+    }
+
+    @Override
+    public byte[] preview() {
+        return EMPTY;
+    }
+
+    @Override
+    public void release() {
+        if (fileChannel == null) return;
+        try {
+            fileChannel.close();
+        } catch (IOException ignored) {
+        }
+        fileChannel = null;
+    }
+}
@@ -0,0 +1,118 @@
+package TCP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * 连接的接收缓冲区，按照MessageFramer把收到的字节切分成完整的消息
+ * 一条消息被拆成多个TCP分段时会在缓冲区中等待，多条消息粘在一起时依次取出
+ */
+class FrameDecoder {
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private final MessageFramer framer;
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int start;
+    private int end;
+    // 当前消息上次分帧的结果：已检查过的字节数，以及至少需要的字节数
+    private int scanned;
+    private int required;
+
+    FrameDecoder(MessageFramer framer) {
+        this.framer = framer;
+    }
+
+    void append(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, end, length);
+        end += length;
+    }
+
+    /**
+     * 从输入流阻塞读取一次
+     * @return 读到的字节数，连接关闭时返回-1
+     */
+    int readFrom(InputStream is) throws IOException {
+        ensureCapacity(1);
+        int bytesRead = is.read(buffer, end, buffer.length - end);
+        if (bytesRead > 0) {
+            end += bytesRead;
+        }
+        return bytesRead;
+    }
+
+    /**
+     * 取出下一条完整消息，没有时返回null
+     */
+    byte[] next() {
+        int length = end - start;
+        if (length == 0 || length < required) return null;
+        int frameLength = framer.frameLength(buffer, start, length, scanned);
+        if (frameLength == -1) {
+            scanned = length;
+            return null;
+        }
+        if (frameLength < 0) {
+            required = -frameLength;
+            return null;
+        }
+        byte[] frame = Arrays.copyOfRange(buffer, start, start + frameLength);
+        consume(frameLength);
+        return frame;
+    }
+
+    /**
+     * 不经过分帧直接取出缓冲区中的字节，用于读取以流的形式传输的数据
+     * @return 取出的字节数，缓冲区为空时返回0
+     */
+    int read(byte[] target, int offset, int length) {
+        int n = Math.min(length, end - start);
+        System.arraycopy(buffer, start, target, offset, n);
+        consume(n);
+        return n;
+    }
+
+    /**
+     * 把缓冲区中最多max个字节直接写入channel
+     * @return 写入的字节数
+     */
+    long transferTo(WritableByteChannel channel, long max) throws IOException {
+        int n = (int) Math.min(max, end - start);
+        ByteBuffer source = ByteBuffer.wrap(buffer, start, n);
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+        consume(n);
+        return n;
+    }
+
+    private void consume(int n) {
+        // 取出的数据属于当前消息，之后从下一条消息的开头分帧
+        scanned = required = 0;
+        start += n;
+        if (start == end) {
+            start = end = 0;
+        }
+    }
+
+    boolean hasRemaining() {
+        return end > start;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (buffer.length - end >= extra) return;
+        int length = end - start;
+        if (start > 0 && buffer.length - length >= extra) {
+            System.arraycopy(buffer, start, buffer, 0, length);
+        } else {
+            byte[] expanded = new byte[Math.max(buffer.length * 2, length + extra)];
+            System.arraycopy(buffer, start, expanded, 0, length);
+            buffer = expanded;
+        }
+        start = 0;
+        end = length;
+    }
+}
@@ -0,0 +1,34 @@
+package TCP;
+
+/**
+ * 消息分帧规则，用于从字节流中切分出完整的消息
+ */
+@FunctionalInterface
+public interface MessageFramer {
+    /**
+     * 缓冲区中已经收到一条完整消息时，返回该消息的字节数；消息还不完整时返回-1
+     */
+    int frameLength(byte[] buffer, int offset, int length);
+
+    /**
+     * 与frameLength相同，可以利用上次调用的结果，不必每次从头检查缓冲区
+     * @param scanned 上次对同一条消息调用时返回-1，为当时的length；否则为0
+     * @return 除-1外还可以返回小于-1的值v，表示消息至少需要-v个字节，收到足够的数据之前不会再次调用
+     */
+    default int frameLength(byte[] buffer, int offset, int length, int scanned) {
+        return frameLength(buffer, offset, length);
+    }
+
+    /**
+     * 紧跟在frame之后、以流的形式交给handler的字节数，例如较大的消息体，不会整体缓冲在内存中
+     * 返回值大于0时，frameLength返回的长度不应包括这部分数据
+     */
+    default long streamLength(byte[] frame) {
+        return 0;
+    }
+
+    /**
+     * 不做分帧，每次收到的数据都视为一条消息
+     */
+    MessageFramer RAW = (buffer, offset, length) -> length;
+}
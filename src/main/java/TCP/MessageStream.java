@@ -0,0 +1,65 @@
+package TCP;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 阻塞引擎中以流的形式传输的数据，先读接收缓冲区中剩余的字节，再直接从socket读取，最多读取length个字节
+ */
+class MessageStream extends InputStream {
+    private final FrameDecoder decoder;
+    private final InputStream socketInput;
+    private final byte[] single = new byte[1];
+    private long remaining;
+
+    MessageStream(FrameDecoder decoder, InputStream socketInput, long length) {
+        this.decoder = decoder;
+        this.socketInput = socketInput;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (remaining == 0) return -1;
+        int max = (int) Math.min(len, remaining);
+        int n = decoder.read(b, off, max);
+        if (n == 0) {
+            n = socketInput.read(b, off, max);
+            if (n == -1) {
+                throw new EOFException("Connection closed before the stream ended");
+            }
+        }
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 丢弃handler没有读取的部分，使后续消息的边界保持正确
+     */
+    void skipRemaining() throws IOException {
+        byte[] scratch = new byte[8192];
+        while (remaining > 0) {
+            read(scratch, 0, scratch.length);
+        }
+    }
+
+    /**
+     * 关闭只丢弃剩余数据，不关闭socket
+     */
+    @Override
+    public void close() throws IOException {
+        skipRemaining();
+    }
+}
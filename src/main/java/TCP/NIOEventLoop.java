@@ -0,0 +1,410 @@
+package TCP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * NIO引擎的事件循环，每个循环持有一个Selector，在单个线程内复用多个连接
+ */
+class NIOEventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long MAX_SWEEP_INTERVAL = 1000;
+
+    private final TCPServer server;
+    private final TCPHandler handler;
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    // 其他线程提交给本循环执行的任务，例如异步响应完成后恢复连接
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // 同一个循环内的连接依次处理，读缓冲区可以共享
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private volatile boolean running = true;
+    private final long idleTimeout;
+    private final long sweepInterval;
+    private long lastSweepTime = System.currentTimeMillis();
+
+    NIOEventLoop(TCPServer server, TCPHandler handler) throws IOException {
+        this.server = server;
+        this.handler = handler;
+        this.selector = Selector.open();
+        this.idleTimeout = server.getIdleTimeout();
+        this.sweepInterval = Math.min(MAX_SWEEP_INTERVAL, Math.max(1, idleTimeout / 4));
+    }
+
+    /**
+     * 由接收线程调用，把新连接交给本循环
+     */
+    void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * 在本循环的线程中执行task，可由任意线程调用
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                if (idleTimeout > 0) {
+                    selector.select(sweepInterval);
+                } else {
+                    selector.select();
+                }
+                registerPendingChannels();
+                runTasks();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                    } catch (RuntimeException | InternalError e) {
+                        // 处理函数的异常，或合并发送时映射的文件已被截断(SIGBUS)，只关闭该连接，事件循环继续运行
+                        e.printStackTrace();
+                        connection.close();
+                    }
+                }
+                if (idleTimeout > 0) {
+                    closeIdleConnections();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(channel, key));
+            } catch (IOException e) {
+                closeQuietly(channel);
+                server.connectionPermits.release();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * 关闭空闲超时的连接，正在发送数据的连接不算空闲
+     */
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        if (now - lastSweepTime < sweepInterval) return;
+        lastSweepTime = now;
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            Connection connection = (Connection) key.attachment();
+            if (connection.writeQueue.isEmpty() && now - connection.lastActiveTime >= idleTimeout) {
+                connection.close();
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            ((Connection) key.attachment()).close();
+        }
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            closeQuietly(channel);
+            server.connectionPermits.release();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private class Connection implements TCPConnection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final FrameDecoder decoder = new FrameDecoder(server.framer);
+        private final WriteQueue writeQueue = new WriteQueue();
+        private final Consumer<TCPPayload> onSent = this::onSent;
+        // 正在等待生成的队首响应，避免重复注册回调
+        private TCPPayload awaitedPayload;
+        // 正在接收的流，收完后才处理对应的消息
+        private SpooledStream spooled;
+        // 正在处理的消息之后的流
+        private InputStream stream;
+        private long lastActiveTime = System.currentTimeMillis();
+        private int messageCount;
+        // 对方已关闭输出
+        private boolean inputEnded;
+        // 不再处理新消息，已排队的响应写完后关闭
+        private boolean closeAfterWrite;
+        private boolean closed;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() throws IOException {
+            lastActiveTime = System.currentTimeMillis();
+            int bytesRead;
+            while ((bytesRead = channel.read(readBuffer)) > 0) {
+                decoder.append(readBuffer.array(), 0, bytesRead);
+                readBuffer.clear();
+            }
+            if (bytesRead == -1) {
+                inputEnded = true;
+            }
+            process();
+        }
+
+        void write() throws IOException {
+            lastActiveTime = System.currentTimeMillis();
+            process();
+        }
+
+        /**
+         * 依次处理缓冲区中的全部请求(流水线)，响应按顺序排队后一起发送
+         * 排队的响应达到上限或发送缓冲区写满时暂停读取，等可写后继续
+         */
+        private void process() throws IOException {
+            while (true) {
+                byte[] message;
+                while (!closeAfterWrite && writeQueue.size() < TCPServer.MAX_PIPELINED_MESSAGES
+                        && (message = nextMessage()) != null) {
+                    messageCount++;
+                    TCPPayload response = handle(message);
+                    if (response != null) {
+                        writeQueue.add(response);
+                        if (response.closesConnection()) {
+                            closeAfterWrite = true;
+                        }
+                    }
+                }
+                boolean more = !closeAfterWrite && writeQueue.size() >= TCPServer.MAX_PIPELINED_MESSAGES;
+
+                if (!writeQueue.flush(channel, onSent)) {
+                    if (writeQueue.isWaiting()) {
+                        awaitResponse();
+                        // 等待期间继续读取后续请求，排队已满或不会再有请求时暂停
+                        boolean readable = !closeAfterWrite && !inputEnded
+                                && writeQueue.size() < TCPServer.MAX_PIPELINED_MESSAGES;
+                        key.interestOps(readable ? SelectionKey.OP_READ : 0);
+                    } else {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    }
+                    return;
+                }
+                if (closeAfterWrite || (inputEnded && !more)) {
+                    close();
+                    return;
+                }
+                if (!more) break;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * 取出下一条消息；消息之后有流时先把流写入临时文件，收完后才返回该消息
+         */
+        private byte[] nextMessage() throws IOException {
+            if (spooled == null) {
+                byte[] message = decoder.next();
+                if (message == null) return null;
+                long length = server.framer.streamLength(message);
+                if (length == 0) return message;
+                spooled = new SpooledStream(message, length);
+            }
+            if (!spooled.fill(decoder)) return null;
+            byte[] message = spooled.getFrame();
+            stream = spooled.open();
+            spooled = null;
+            return message;
+        }
+
+        /**
+         * 调用handler；消息带有流时，流在响应发送完成或连接关闭时才关闭，异步处理可以继续读取
+         */
+        private TCPPayload handle(byte[] message) throws IOException {
+            if (stream == null) {
+                return handler.handle(this, message);
+            }
+            InputStream current = stream;
+            try {
+                TCPPayload response = handler.handle(this, message);
+                if (response == null) {
+                    current.close();
+                    return null;
+                }
+                return new StreamOwningPayload(response, current);
+            } catch (RuntimeException e) {
+                current.close();
+                throw e;
+            } finally {
+                stream = null;
+            }
+        }
+
+        private void onSent(TCPPayload payload) {
+            server.showSentMessage.accept(payload.preview());
+            // 异步响应在生成后才能知道是否需要关闭连接
+            if (payload.closesConnection()) {
+                closeAfterWrite = true;
+            }
+        }
+
+        /**
+         * 队首响应生成后回到本循环的线程继续发送
+         */
+        private void awaitResponse() {
+            TCPPayload head = writeQueue.peek();
+            if (head == awaitedPayload) return;
+            awaitedPayload = head;
+            head.whenResolved(() -> execute(this::resume));
+        }
+
+        private void resume() {
+            if (closed) return;
+            lastActiveTime = System.currentTimeMillis();
+            try {
+                process();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            key.cancel();
+            closeQuietly(channel);
+            writeQueue.clear();
+            if (spooled != null) {
+                spooled.discard();
+            }
+            server.connectionPermits.release();
+        }
+
+        @Override
+        public int getMessageCount() {
+            return messageCount;
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            try {
+                return channel.getRemoteAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public InputStream getStream() {
+            return stream;
+        }
+    }
+
+    /**
+     * 持有请求之后的流，响应释放时一起关闭
+     */
+    private static class StreamOwningPayload implements TCPPayload {
+        private final TCPPayload payload;
+        private final InputStream stream;
+
+        StreamOwningPayload(TCPPayload payload, InputStream stream) {
+            this.payload = payload;
+            this.stream = stream;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel channel) throws IOException {
+            return payload.writeTo(channel);
+        }
+
+        @Override
+        public byte[] preview() {
+            return payload.preview();
+        }
+
+        @Override
+        public void release() {
+            payload.release();
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public boolean appendBuffers(List<ByteBuffer> target) {
+            return payload.appendBuffers(target);
+        }
+
+        @Override
+        public void onWriteFailed() {
+            payload.onWriteFailed();
+        }
+
+        @Override
+        public boolean closesConnection() {
+            return payload.closesConnection();
+        }
+
+        @Override
+        public boolean isResolved() {
+            return payload.isResolved();
+        }
+
+        @Override
+        public void whenResolved(Runnable callback) {
+            payload.whenResolved(callback);
+        }
+    }
+}
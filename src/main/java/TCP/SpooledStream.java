@@ -0,0 +1,58 @@
+package TCP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * NIO引擎中以流的形式传输的数据，事件循环不能阻塞等待handler读取，
+ * 所以先边收边写入临时文件，收完后再交给handler读取，数据不会整体缓冲在堆内存中
+ */
+class SpooledStream {
+    private final byte[] frame;
+    private final Path file;
+    private final FileChannel channel;
+    private long remaining;
+
+    SpooledStream(byte[] frame, long length) throws IOException {
+        this.frame = frame;
+        this.remaining = length;
+        this.file = Files.createTempFile("tcp-stream-", ".tmp");
+        this.channel = FileChannel.open(file, StandardOpenOption.WRITE);
+    }
+
+    byte[] getFrame() {
+        return frame;
+    }
+
+    /**
+     * 把接收缓冲区中属于该流的字节写入临时文件
+     * @return 已经收完时返回true
+     */
+    boolean fill(FrameDecoder decoder) throws IOException {
+        remaining -= decoder.transferTo(channel, remaining);
+        return remaining == 0;
+    }
+
+    /**
+     * 收完后打开供handler读取，关闭时删除临时文件
+     */
+    InputStream open() throws IOException {
+        channel.close();
+        return Files.newInputStream(file, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    /**
+     * 连接在收完之前关闭时调用
+     */
+    void discard() {
+        try {
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+        }
+    }
+}
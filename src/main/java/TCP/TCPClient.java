@@ -9,6 +9,8 @@ public class TCPClient {
     private Socket clientSocket;
     protected final String host;
     protected final int port;
+    protected MessageFramer framer = MessageFramer.RAW;
+    private FrameDecoder decoder;
 
     public TCPClient(String host, int port) {
         this.host = host;
@@ -24,6 +26,7 @@ public class TCPClient {
     public void start() {
         try {
             clientSocket = new Socket(host, port);
+            decoder = new FrameDecoder(framer);
         } catch (IOException e) {
             System.out.println("Failed to connect to " + host + ": " + port);
             throw new RuntimeException(e);
@@ -43,6 +46,10 @@ public class TCPClient {
         }
     }
 
+    public void setFramer(MessageFramer framer) {
+        this.framer = framer;
+    }
+
     public boolean isReady() {
         return clientSocket != null && !clientSocket.isClosed();
     }
@@ -56,14 +63,13 @@ public class TCPClient {
     public byte[] receiveMessage() throws IOException {
         if (!isReady()) start();
         InputStream is = clientSocket.getInputStream();
-        StringBuilder sb = new StringBuilder();
-        while (sb.isEmpty()) {
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            while (is.available() > 0 && (bytesRead = is.read(buffer)) != -1) {
-                sb.append(new String(buffer, 0, bytesRead));
+        byte[] message;
+        while ((message = decoder.next()) == null) {
+            if (decoder.readFrom(is) == -1) {
+                clientSocket.close();
+                throw new IOException("Connection closed by server");
             }
         }
-        return sb.toString().getBytes();
+        return message;
     }
 }
@@ -0,0 +1,22 @@
+package TCP;
+
+import java.io.InputStream;
+import java.net.SocketAddress;
+
+/**
+ * handler可见的连接信息
+ */
+public interface TCPConnection {
+    /**
+     * 该连接上已收到的消息数，包括正在处理的这一条
+     */
+    int getMessageCount();
+
+    SocketAddress getRemoteAddress();
+
+    /**
+     * 当前消息之后以流的形式传输的数据(见MessageFramer.streamLength)，没有时返回null
+     * 只能在handle期间获取；阻塞引擎中直接从socket读取，未读完的部分在handle返回且响应生成后丢弃
+     */
+    InputStream getStream();
+}
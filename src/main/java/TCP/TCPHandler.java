@@ -0,0 +1,10 @@
+package TCP;
+
+/**
+ * 处理一条完整的消息，返回需要发送给对端的数据，返回null表示不回复
+ * 耗时的处理可以返回TCPPayload.deferred，不占用连接所在的线程
+ */
+@FunctionalInterface
+public interface TCPHandler {
+    TCPPayload handle(TCPConnection connection, byte[] message);
+}
@@ -0,0 +1,154 @@
+package TCP;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 待发送给对端的数据，可以是内存中的字节，也可以是文件的一段
+ * 文件内容通过FileChannel.transferTo直接写入socket，不经过堆内存
+ */
+public interface TCPPayload {
+    /**
+     * 尽可能多地写入channel
+     * 阻塞channel会一直写到结束；非阻塞channel写满发送缓冲区时返回false，可写后再次调用
+     * @return 全部写完时返回true
+     */
+    boolean writeTo(WritableByteChannel channel) throws IOException;
+
+    /**
+     * 用于展示的内容，文件部分不会被读入内存
+     */
+    byte[] preview();
+
+    /**
+     * 释放占用的资源，发送完成或连接关闭时调用
+     */
+    default void release() {}
+
+    /**
+     * 数据全部在内存中时，把未发送的部分加入target，以便与其他payload合并为一次gathering write
+     * @return 包含文件等无法合并的数据时返回false
+     */
+    default boolean appendBuffers(List<ByteBuffer> target) {
+        return false;
+    }
+
+    /**
+     * appendBuffers加入的缓冲区在合并发送时出错后调用，缓冲区本身已无法访问时(例如映射的文件被截断)通知数据的来源
+     */
+    default void onWriteFailed() {}
+
+    /**
+     * 发送完成后是否关闭连接
+     */
+    default boolean closesConnection() {
+        return false;
+    }
+
+    /**
+     * 数据是否已经生成，异步生成的数据完成前返回false
+     */
+    default boolean isResolved() {
+        return true;
+    }
+
+    /**
+     * 数据生成后调用callback，可能在其他线程中调用
+     */
+    default void whenResolved(Runnable callback) {
+        callback.run();
+    }
+
+    static TCPPayload of(byte[] bytes) {
+        return new BytesPayload(bytes, 0, bytes.length);
+    }
+
+    static TCPPayload of(byte[] bytes, int offset, int length) {
+        return new BytesPayload(bytes, offset, length);
+    }
+
+    /**
+     * 缓冲区中position到limit之间的数据，发送时不改变原缓冲区的位置
+     */
+    static TCPPayload of(ByteBuffer buffer) {
+        return new BufferPayload(buffer, null);
+    }
+
+    /**
+     * @param onFault 缓冲区无法访问(例如映射的文件被截断)时调用，之后发送以IOException失败
+     */
+    static TCPPayload of(ByteBuffer buffer, Runnable onFault) {
+        return new BufferPayload(buffer, onFault);
+    }
+
+    static TCPPayload ofFile(Path path, long position, long count) {
+        return new FilePayload(path, position, count);
+    }
+
+    static TCPPayload concat(TCPPayload... payloads) {
+        return new CompositePayload(payloads);
+    }
+
+    /**
+     * 异步生成的数据，在发送队列中占位直到future完成
+     */
+    static TCPPayload deferred(CompletableFuture<? extends TCPPayload> future) {
+        return new DeferredPayload(future);
+    }
+
+    /**
+     * 包装payload，发送完成后关闭连接
+     */
+    static TCPPayload closing(TCPPayload payload) {
+        return new TCPPayload() {
+            @Override
+            public boolean writeTo(WritableByteChannel channel) throws IOException {
+                return payload.writeTo(channel);
+            }
+
+            @Override
+            public byte[] preview() {
+                return payload.preview();
+            }
+
+            @Override
+            public void release() {
+                payload.release();
+            }
+
+            @Override
+            public boolean appendBuffers(List<ByteBuffer> target) {
+                return payload.appendBuffers(target);
+            }
+
+            @Override
+            public void onWriteFailed() {
+                payload.onWriteFailed();
+            }
+
+            @Override
+            public boolean isResolved() {
+                return payload.isResolved();
+            }
+
+            @Override
+            public void whenResolved(Runnable callback) {
+                payload.whenResolved(callback);
+            }
+
+            @Override
+            public boolean closesConnection() {
+                return true;
+            }
+        };
+    }
+
+    static boolean isNonBlocking(WritableByteChannel channel) {
+        return channel instanceof SelectableChannel selectable && !selectable.isBlocking();
+    }
+}
@@ -1,29 +1,74 @@
 package TCP;
 
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 public class TCPServer {
-    private ServerSocket serverSocket;
+    private static final int EVENT_LOOP_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final int DEFAULT_MAX_CONNECTIONS = 10000;
+    private static final int DEFAULT_IDLE_TIMEOUT = 5000;
+    // 单个连接上排队等待发送的响应数上限
+    static final int MAX_PIPELINED_MESSAGES = 16;
+
+    private ServerSocketChannel serverChannel;
     private final int port;
-    protected final ExecutorService threadPool = Executors.newFixedThreadPool(10);
+    private final Engine engine;
+    private final List<NIOEventLoop> eventLoops = new ArrayList<>();
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    // 连接空闲超过该时间(毫秒)后关闭，0表示不限制
+    private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    // 限制同时保持的连接数，达到上限后暂停accept，新连接留在系统的backlog中
+    protected Semaphore connectionPermits;
+    // 阻塞引擎中处理连接；NIO引擎中执行可能阻塞的处理函数，不占用事件循环
+    protected final ExecutorService threadPool;
+
+    /**
+     * 连接处理引擎
+     * BLOCKING: 每个连接占用线程池中的一个线程
+     * NIO: 少量事件循环线程通过Selector复用所有连接
+     * VIRTUAL_THREAD: 每个连接一个虚拟线程，阻塞读写不再占用平台线程
+     */
+    public enum Engine {
+        BLOCKING, NIO, VIRTUAL_THREAD
+    }
+
+    protected MessageFramer framer = MessageFramer.RAW;
 
     protected Consumer<byte[]> showReceivedMessage = arg -> {};
     protected Consumer<byte[]> showSentMessage = arg -> {};
     protected Consumer<Integer> showStartInfo = arg -> {};
 
     public TCPServer(int port) {
+        this(port, Engine.BLOCKING);
+    }
+
+    public TCPServer(int port, Engine engine) {
         this.port = port;
+        this.engine = engine;
+        this.threadPool = engine == Engine.VIRTUAL_THREAD
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(10);
     }
 
     protected void start() {
+        connectionPermits = new Semaphore(maxConnections);
         try {
-            serverSocket = new ServerSocket(port);
+            // 所有引擎都通过channel接收连接，阻塞引擎也可以使用transferTo发送文件
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
         } catch (IOException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
@@ -33,16 +78,24 @@ public class TCPServer {
 
     public void stop() {
         try {
-            if (isReady()) {
-                serverSocket.close();
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
             }
             threadPool.shutdown();
+            synchronized (eventLoops) {
+                eventLoops.forEach(NIOEventLoop::shutdown);
+                eventLoops.clear();
+            }
         } catch (IOException e) {
             e.printStackTrace();
             System.out.println("Failed to stop server");
         }
     }
 
+    public void setFramer(MessageFramer framer) {
+        this.framer = framer;
+    }
+
     public void setShowReceivedMessage(Consumer<byte[]> handler) {
         this.showReceivedMessage = handler;
     }
@@ -55,30 +108,137 @@ public class TCPServer {
         this.showStartInfo = handler;
     }
 
+    /**
+     * 设置最大并发连接数，需在服务器启动前调用
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("Invalid max connections: " + maxConnections);
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * 设置连接的空闲超时时间(毫秒)，0表示不限制，需在服务器启动前调用
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException("Invalid idle timeout: " + idleTimeout);
+        }
+        this.idleTimeout = idleTimeout;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
     public boolean isReady() {
-        return serverSocket != null && !serverSocket.isClosed();
+        return serverChannel != null && serverChannel.isOpen();
     }
 
     public void run(Function<byte[], byte[]> handler) {
+        serve((connection, message) -> {
+            byte[] response = handler.apply(message);
+            return response == null ? null : TCPPayload.of(response);
+        });
+    }
+
+    /**
+     * 与run相同，但handler可以获取连接信息，返回的数据可以包含文件内容，由引擎直接写入socket
+     */
+    public void serve(TCPHandler handler) {
         if (!isReady()) start();
+        if (engine == Engine.NIO) {
+            runEventLoops(handler);
+            return;
+        }
         while (isReady()) {
             try {
-                Socket clientSocket = serverSocket.accept();
-                threadPool.execute(new TCPClientHandler(clientSocket, handler));
-            } catch (IOException e) {
+                connectionPermits.acquire();
+                SocketChannel clientChannel;
+                try {
+                    clientChannel = serverChannel.accept();
+                } catch (IOException e) {
+                    connectionPermits.release();
+                    throw e;
+                }
+                threadPool.execute(new TCPClientHandler(clientChannel.socket(), handler));
+            } catch (IOException | InterruptedException e) {
                 stop();
                 return;
             }
         }
     }
 
-    protected class TCPClientHandler implements Runnable {
+    private void runEventLoops(TCPHandler handler) {
+        // 接收线程只使用启动时的副本，stop清空列表不影响这里
+        NIOEventLoop[] loops;
+        try {
+            synchronized (eventLoops) {
+                for (int i = 0; i < EVENT_LOOP_THREADS; i++) {
+                    NIOEventLoop eventLoop = new NIOEventLoop(this, handler);
+                    eventLoops.add(eventLoop);
+                    Thread thread = new Thread(eventLoop, "nio-event-loop-" + i);
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                loops = eventLoops.toArray(new NIOEventLoop[0]);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            stop();
+            return;
+        }
+
+        // 接收线程阻塞在accept上，新连接轮流分配给各事件循环
+        int next = 0;
+        while (isReady()) {
+            try {
+                connectionPermits.acquire();
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (IOException e) {
+                    connectionPermits.release();
+                    throw e;
+                }
+                if (!isReady()) {
+                    // 接收之后服务器已停止，事件循环不再处理新连接
+                    channel.close();
+                    connectionPermits.release();
+                    return;
+                }
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (IOException | InterruptedException e) {
+                stop();
+                return;
+            }
+        }
+    }
+
+    protected class TCPClientHandler implements Runnable, TCPConnection {
         protected final Socket clientSocket;
         protected byte[] receivedMessage;
-        protected byte[] sentMessage;
-        protected Function<byte[], byte[]> handler;
+        protected TCPPayload sentMessage;
+        protected TCPHandler handler;
+        private final FrameDecoder decoder = new FrameDecoder(framer);
+        private final WriteQueue writeQueue = new WriteQueue();
+        private int messageCount;
+        // 已发送的响应要求关闭连接，异步响应在生成后才能确定
+        private boolean closeRequested;
+        // 当前消息之后以流的形式传输的数据
+        private MessageStream stream;
 
-        public TCPClientHandler(Socket socket, Function<byte[], byte[]> handler) {
+        public TCPClientHandler(Socket socket, TCPHandler handler) {
             this.clientSocket = socket;
             this.handler = handler;
         }
@@ -86,53 +246,110 @@ public class TCPServer {
         @Override
         public void run() {
             try {
+                clientSocket.setSoTimeout(idleTimeout);
                 while (isReady()) {
                     receiveMessage();
-                    if (receivedMessage == null || receivedMessage.length == 0) {
-                        try {
-                            Thread.sleep(100);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                        continue;
+                    if (receivedMessage == null) break;
+                    boolean closing = handleMessage();
+                    // 流水线：已经缓冲的后续请求先全部处理，响应排队后一次性发送
+                    while (!closing && writeQueue.size() < MAX_PIPELINED_MESSAGES
+                            && (receivedMessage = decoder.next()) != null) {
+                        closing = handleMessage();
                     }
-                    sentMessage = handler.apply(receivedMessage);
                     sendMessage();
+                    if (closing || closeRequested) break;
                 }
+            } catch (SocketTimeoutException e) {
+                // 空闲超时，直接关闭连接
             } catch (IOException e) {
                 e.printStackTrace();
+            } finally {
+                writeQueue.clear();
+                try {
+                    clientSocket.close();
+                } catch (IOException ignored) {
+                }
+                connectionPermits.release();
             }
         }
 
+        /**
+         * 阻塞读取，直到收到一条完整的消息；连接被对方关闭时receivedMessage为null
+         */
         protected void receiveMessage() throws IOException {
-            // TODO: 实现TCP消息接收
             if (!isReady()) {
                 throw new IOException("Client socket is not ready");
             }
             InputStream is = clientSocket.getInputStream();
-            StringBuilder sb = new StringBuilder();
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            while (is.available() > 0 && (bytesRead = is.read(buffer)) != -1) {
-                sb.append(new String(buffer, 0, bytesRead));
+            while ((receivedMessage = decoder.next()) == null) {
+                if (decoder.readFrom(is) == -1) {
+                    return;
+                }
             }
-            receivedMessage = sb.toString().getBytes();
         }
 
+        /**
+         * 处理receivedMessage，响应加入发送队列
+         * @return 响应发送后需要关闭连接时返回true
+         */
+        private boolean handleMessage() throws IOException {
+            messageCount++;
+            long streamLength = framer.streamLength(receivedMessage);
+            stream = streamLength > 0 ? new MessageStream(decoder, clientSocket.getInputStream(), streamLength) : null;
+            try {
+                sentMessage = handler.handle(this, receivedMessage);
+                if (stream != null) {
+                    // 异步处理可能仍在读取，等响应生成后再丢弃未读的部分
+                    awaitResolved(sentMessage);
+                    stream.skipRemaining();
+                }
+            } finally {
+                stream = null;
+            }
+            if (sentMessage == null) return false;
+            writeQueue.add(sentMessage);
+            return sentMessage.closesConnection();
+        }
+
+        /**
+         * 发送队列中的所有响应
+         */
         protected void sendMessage() throws IOException {
             if (!isReady()) {
                 throw new RuntimeException("Client socket is not ready");
             }
-            if (sentMessage == null) return;
-            OutputStream os = clientSocket.getOutputStream();
-            os.write(sentMessage);
-            os.flush();
-            showSentMessage.accept(sentMessage);
+            // 阻塞channel会等待异步响应生成
+            writeQueue.flush(clientSocket.getChannel(), payload -> {
+                showSentMessage.accept(payload.preview());
+                if (payload.closesConnection()) closeRequested = true;
+            });
         }
 
         protected boolean isReady() {
             return clientSocket != null && !clientSocket.isClosed();
         }
+
+        @Override
+        public int getMessageCount() {
+            return messageCount;
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return clientSocket.getRemoteSocketAddress();
+        }
+
+        @Override
+        public InputStream getStream() {
+            return stream;
+        }
+    }
+
+    private static void awaitResolved(TCPPayload payload) {
+        if (payload == null || payload.isResolved()) return;
+        CompletableFuture<Void> resolved = new CompletableFuture<>();
+        payload.whenResolved(() -> resolved.complete(null));
+        resolved.join();
     }
 
 
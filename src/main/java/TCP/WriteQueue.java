@@ -0,0 +1,116 @@
+package TCP;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 连接的发送队列，按顺序发送响应
+ * 连续的内存数据通过一次gathering write发送，流水线上的多个小响应只需要一次系统调用
+ */
+class WriteQueue {
+    private final ArrayDeque<TCPPayload> payloads = new ArrayDeque<>();
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    // 与payloads一一对应，记录每个payload的最后一个缓冲区在buffers中的下标
+    private final List<Integer> lastBufferIndexes = new ArrayList<>();
+
+    void add(TCPPayload payload) {
+        payloads.add(payload);
+    }
+
+    int size() {
+        return payloads.size();
+    }
+
+    boolean isEmpty() {
+        return payloads.isEmpty();
+    }
+
+    /**
+     * 队首的数据尚未生成，需要等待异步处理完成
+     */
+    boolean isWaiting() {
+        TCPPayload head = payloads.peek();
+        return head != null && !head.isResolved();
+    }
+
+    TCPPayload peek() {
+        return payloads.peek();
+    }
+
+    /**
+     * 尽可能多地发送，发送完需要关闭连接的payload后停止
+     * @param onSent 每个payload发送完成后调用
+     * @return 全部发送完时返回true；非阻塞channel的发送缓冲区写满或队首数据尚未生成时返回false
+     */
+    boolean flush(SocketChannel channel, Consumer<TCPPayload> onSent) throws IOException {
+        while (!payloads.isEmpty()) {
+            collectBuffers();
+            if (lastBufferIndexes.size() < 2) {
+                // 队首是文件或只有一个响应，直接发送
+                TCPPayload payload = payloads.peek();
+                if (!payload.writeTo(channel)) {
+                    return false;
+                }
+                if (complete(onSent)) return true;
+                continue;
+            }
+
+            ByteBuffer[] array = buffers.toArray(new ByteBuffer[0]);
+            boolean blocking = channel.isBlocking();
+            try {
+                do {
+                    if (channel.write(array) == 0 && !blocking) break;
+                } while (blocking && array[array.length - 1].hasRemaining());
+            } catch (IOException e) {
+                payloads.forEach(TCPPayload::onWriteFailed);
+                throw e;
+            }
+
+            for (int lastIndex : lastBufferIndexes) {
+                if (array[lastIndex].hasRemaining()) {
+                    return false;
+                }
+                if (complete(onSent)) return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 释放所有未发送的数据，连接关闭时调用
+     */
+    void clear() {
+        payloads.forEach(TCPPayload::release);
+        payloads.clear();
+    }
+
+    /**
+     * @return 该payload发送后需要关闭连接时返回true
+     */
+    private boolean complete(Consumer<TCPPayload> onSent) {
+        TCPPayload payload = payloads.poll();
+        payload.release();
+        onSent.accept(payload);
+        return payload.closesConnection();
+    }
+
+    private void collectBuffers() {
+        buffers.clear();
+        lastBufferIndexes.clear();
+        for (TCPPayload payload : payloads) {
+            int size = buffers.size();
+            if (!payload.appendBuffers(buffers) || buffers.size() == size) {
+                // 回滚该payload已加入的部分
+                buffers.subList(size, buffers.size()).clear();
+                return;
+            }
+            lastBufferIndexes.add(buffers.size() - 1);
+            if (payload.closesConnection()) return;
+        }
+    }
+}